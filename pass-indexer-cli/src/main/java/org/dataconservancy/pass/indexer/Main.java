@@ -1,6 +1,8 @@
 package org.dataconservancy.pass.indexer;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 
@@ -49,6 +51,53 @@ public class Main {
             serv.setJmsQueue(get_config("PI_FEDORA_JMS_QUEUE"));
             serv.setElasticsearchIndexUrl(get_config("PI_ES_INDEX"));
             serv.setElasticsearchIndexConfig(get_config("PI_ES_CONFIG", null));
+
+            String field_plan_cache = get_config("PI_ES_FIELD_PLAN_CACHE", null);
+
+            if (field_plan_cache != null) {
+                serv.setFieldPlanCache(Paths.get(field_plan_cache));
+            }
+
+            String additional_indexes = get_config("PI_ES_ADDITIONAL_INDEXES", null);
+
+            if (additional_indexes != null) {
+                serv.setAdditionalIndexes(Arrays.asList(additional_indexes.split(",")));
+            }
+
+            String type_routes = get_config("PI_ES_TYPE_ROUTES", null);
+
+            if (type_routes != null) {
+                serv.setTypeRoutes(Arrays.asList(type_routes.split(",")));
+            }
+
+            String enrich_links = get_config("PI_ES_ENRICH_LINKS", null);
+
+            if (enrich_links != null) {
+                serv.setEnrichLinks(Enricher.parse_links(enrich_links));
+            }
+
+            serv.setEnrichCache(Integer.parseInt(get_config("PI_ES_ENRICH_CACHE_SIZE", "10000")),
+                                1000 * Long.parseLong(get_config("PI_ES_ENRICH_CACHE_SECONDS", "300")));
+            serv.setDroppedFieldSummaryMillis(
+                1000 * Long.parseLong(get_config("PI_ES_DROPPED_SUMMARY_SECONDS", "60")));
+            serv.setExternalVersioning(Boolean.parseBoolean(get_config("PI_ES_EXTERNAL_VERSIONING", "false")));
+            serv.setPartialUpdates(Integer.parseInt(get_config("PI_ES_PARTIAL_UPDATES", "0")));
+            serv.setSinkBatch(Integer.parseInt(get_config("PI_ES_SINK_BATCH_SIZE", "100")),
+                              Long.parseLong(get_config("PI_ES_SINK_BATCH_DELAY_MS", "200")));
+            serv.setSinkBreaker(Integer.parseInt(get_config("PI_ES_SINK_BREAKER_FAILURES", "5")),
+                                1000 * Long.parseLong(get_config("PI_ES_SINK_BREAKER_SECONDS", "30")));
+
+            String sink_journal = get_config("PI_ES_SINK_JOURNAL", null);
+
+            if (sink_journal != null) {
+                serv.setSinkJournal(Paths.get(sink_journal));
+            }
+
+            serv.setFailFast(Boolean.parseBoolean(get_config("PI_ES_FAIL_FAST", "true")));
+            serv.setMappingPollSeconds(Long.parseLong(get_config("PI_ES_MAPPING_POLL_SECONDS", "0")));
+            serv.setAdminPort(Integer.parseInt(get_config("PI_ADMIN_PORT", "-1")));
+            serv.setWaitForRefresh(Boolean.parseBoolean(get_config("PI_ES_WAIT_FOR_REFRESH", "false")));
+            serv.setReadyMaxLagMillis(1000 * Long.parseLong(get_config("PI_READY_MAX_LAG_SECONDS", "0")));
             serv.setFedoraUser(get_config("PI_FEDORA_USER"));
             serv.setFedoraPass(get_config("PI_FEDORA_PASS"));
             serv.setAllowedTypePrefix(get_config("PI_TYPE_PREFIX"));
@@ -0,0 +1,113 @@
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal HTTP server for operating a running indexer. Each path is answered by a handler for a
+ * single method. It has no authentication, so the port must not be exposed beyond the host or
+ * cluster network.
+ */
+public class AdminServer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(AdminServer.class);
+
+    /**
+     * Response to an admin request.
+     */
+    public static final class Reply {
+        final int status;
+        final String content_type;
+        final String body;
+
+        public Reply(int status, String content_type, String body) {
+            this.status = status;
+            this.content_type = content_type;
+            this.body = body;
+        }
+
+        public static Reply json(int status, JSONObject body) {
+            return new Reply(status, "application/json; charset=utf-8", body.toString(2));
+        }
+
+        public static Reply text(int status, String body) {
+            return new Reply(status, "text/plain; charset=utf-8", body);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        Reply handle() throws Exception;
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "admin-server");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param port - Port to listen on, 0 for any free port
+     * @throws IOException
+     */
+    public AdminServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+    }
+
+    // Answer requests with the given method to the given path.
+    public void add(String method, String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            try {
+                if (!exchange.getRequestURI().getPath().equals(path)) {
+                    respond(exchange, Reply.text(404, "Not found\n"));
+                } else if (!exchange.getRequestMethod().equals(method)) {
+                    respond(exchange, Reply.text(405, "Use " + method + "\n"));
+                } else {
+                    respond(exchange, handler.handle());
+                }
+            } catch (Exception e) {
+                LOG.warn("Admin request failed: " + exchange.getRequestURI(), e);
+                respond(exchange, Reply.text(500, e + "\n"));
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private static void respond(HttpExchange exchange, Reply reply) throws IOException {
+        byte[] body = reply.body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", reply.content_type);
+        exchange.sendResponseHeaders(reply.status, body.length);
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    public void start() {
+        server.start();
+        LOG.info("Admin server listening on port " + get_port());
+    }
+
+    public int get_port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
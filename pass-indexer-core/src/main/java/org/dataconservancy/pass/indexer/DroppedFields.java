@@ -0,0 +1,152 @@
+package org.dataconservancy.pass.indexer;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the properties of documents dropped by normalization, by field and reason. Rather than a
+ * warning for every property dropped, a summary of the fields dropped most since the last one is
+ * logged at most once an interval, each with a sample value. Counts are also kept as metrics.
+ *
+ * Properties are named by Fedora, so the number of fields counted separately is capped. Fields
+ * beyond the cap are counted together. Thread safe.
+ */
+class DroppedFields {
+    // Logged as the indexer, whose warnings for each property the summaries replace
+    private static final Logger LOG = LoggerFactory.getLogger(ElasticSearchIndexer.class);
+
+    private static final int MAX_FIELDS = 200;
+    private static final int SUMMARY_FIELDS = 10;
+    private static final int MAX_SAMPLE_LENGTH = 100;
+    private static final String OTHER_FIELDS = "(other)";
+
+    private static class Dropped {
+        final String field;
+        final String reason;
+        final LongAdder total;
+        final AtomicLong since_summary = new AtomicLong();
+        volatile String sample;
+
+        Dropped(String field, String reason, LongAdder total) {
+            this.field = field;
+            this.reason = reason;
+            this.total = total;
+        }
+    }
+
+    private final String index;
+    private final Map<String, Dropped> dropped = new ConcurrentHashMap<>();
+    private volatile MetricsRegistry metrics;
+    private volatile long interval_nanos = TimeUnit.SECONDS.toNanos(60);
+    private volatile long last_summary = System.nanoTime();
+
+    /**
+     * @param index - URL of the index the documents are for
+     */
+    DroppedFields(String index) {
+        this.index = index;
+    }
+
+    // Count fields dropped from now on in the given registry.
+    void set_metrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    void set_summary_interval(long millis) {
+        this.interval_nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    // Count a dropped property and log a summary if one is due.
+    void drop(String field, String reason, Object value) {
+        String key = field + '\n' + reason;
+        Dropped d = dropped.get(key);
+
+        if (d == null) {
+            if (dropped.size() >= MAX_FIELDS) {
+                field = OTHER_FIELDS;
+                key = field + '\n' + reason;
+            }
+
+            String counted = field;
+            d = dropped.computeIfAbsent(key, k -> new Dropped(counted, reason, counter(counted, reason)));
+        }
+
+        d.total.increment();
+
+        if (d.since_summary.getAndIncrement() == 0) {
+            String sample = String.valueOf(value);
+            d.sample = sample.length() > MAX_SAMPLE_LENGTH ? sample.substring(0, MAX_SAMPLE_LENGTH) + "..." : sample;
+        }
+
+        if (System.nanoTime() - last_summary >= interval_nanos) {
+            log_summary(false);
+        }
+    }
+
+    private LongAdder counter(String field, String reason) {
+        MetricsRegistry registry = metrics;
+
+        if (registry == null) {
+            return new LongAdder();
+        }
+
+        return registry.counter("pass_indexer_dropped_fields_total", "Properties dropped from documents, by field "
+                                + "and reason", "index", index, "field", field, "reason", reason);
+    }
+
+    /**
+     * Log the fields dropped most since the last summary, if any were.
+     *
+     * @param force - Whether to log even if the interval has not passed, for example on shutdown
+     */
+    synchronized void log_summary(boolean force) {
+        long now = System.nanoTime();
+
+        if (!force && now - last_summary < interval_nanos) {
+            return;
+        }
+
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(now - last_summary);
+        last_summary = now;
+
+        List<Map.Entry<Dropped, Long>> counts = new ArrayList<>();
+
+        for (Dropped d : dropped.values()) {
+            long count = d.since_summary.getAndSet(0);
+
+            if (count > 0) {
+                counts.add(new AbstractMap.SimpleEntry<>(d, count));
+            }
+        }
+
+        if (counts.isEmpty()) {
+            return;
+        }
+
+        counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        StringBuilder msg = new StringBuilder("Properties dropped from documents for " + index + " in the last "
+                                              + seconds + " s:");
+
+        for (Map.Entry<Dropped, Long> count : counts.subList(0, Math.min(SUMMARY_FIELDS, counts.size()))) {
+            Dropped d = count.getKey();
+            msg.append("\n  ").append(d.field).append(" (").append(d.reason).append(") ").append(count.getValue())
+               .append(" times, e.g. ").append(d.sample);
+        }
+
+        if (counts.size() > SUMMARY_FIELDS) {
+            msg.append("\n  and ").append(counts.size() - SUMMARY_FIELDS).append(" more fields");
+        }
+
+        LOG.warn(msg.toString());
+    }
+}
@@ -2,6 +2,7 @@ package org.dataconservancy.pass.indexer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -9,12 +10,19 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Base64;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
 import okhttp3.Credentials;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -33,23 +41,69 @@ import org.slf4j.LoggerFactory;
  *
  * The mapping in the index configuration is used to check JSON documents retrieved from Fedora
  * before indexing. Properties which do not have a mapping or otherwise cannot be indexed are
- * logged and ignored. On start the index is checked.
+ * counted and ignored, with a summary of them logged periodically. On start the index is checked.
+ *
+ * The fields supported by the mapping are kept as a {@link FieldPlan}. If a file to cache the plan
+ * is given, a plan saved on an earlier start is used right away and the index is checked in the
+ * background, retrying until it succeeds, so that documents can be indexed while Elasticsearch
+ * is slow to respond. If the mapping changed meanwhile, the plan from the index replaces the cached
+ * one. Without a cached plan, or when failing fast is asked for, the index is checked before the
+ * constructor returns.
+ *
+ * The plan can be reloaded from the mapping of the index at any time, for example when fields have
+ * been added to it. Documents being normalized keep the plan they started with, so reloading
+ * never pauses indexing.
  *
  * Properties which contain Fedora URIs have a custom matching with causes them to be indexed as
  * Fedora resource paths. This allows a client to search using different URIs which map to the same
  * Fedora resource.
+ *
+ * With an {@link Enricher}, documents also get fields of the resources they refer to. When such a
+ * resource changes, the fields embedded from it are updated in place in the documents referring to
+ * it, with partial updates of only those fields.
+ *
+ * Optionally documents indexed before are updated with only the fields which changed, see
+ * set_partial_updates.
+ *
+ * With external versioning, documents are indexed with the last modified time of their Fedora
+ * resource as their version, so that Elasticsearch rejects writes of an older version than the one
+ * indexed. Those are counted and otherwise treated as successful. Versions equal to the one indexed
+ * are accepted, so indexing a resource again, for example after a mapping change, still works.
+ * Versions are only accurate to the second, and partial updates are not used with them.
  */
 public class ElasticSearchIndexer implements IndexerConstants {
-    private static final String SUGGEST_SUFFIX = "_suggest";
+    private static final String SUGGEST_SUFFIX = FieldPlan.SUGGEST_SUFFIX;
+
+    // Equal versions are accepted, so documents can be indexed again from the same version
+    private static final String VERSION_TYPE = "external_gte";
+
+    // Times an update of some fields is retried by Elasticsearch when the document is changed meanwhile
+    private static final int UPDATE_RETRIES = 3;
+
+    // Longest a write waits for the index to be checked, see await_index_check
+    private static final long INDEX_CHECK_WAIT_SECONDS = 10;
+
+    // Documents read at once when searching for those referring to a resource, and how long a scroll
+    // over them is kept between pages
+    private static final int REFERRING_PAGE_SIZE = 500;
+    private static final String REFERRING_SCROLL = "1m";
     private static final Logger LOG = LoggerFactory.getLogger(ElasticSearchIndexer.class);
 
     private final OkHttpClient client;
     private final String fedora_cred;
     private final String es_index_url;
-    private final Set<String> supported_fields;
-
-    // Fields which have a _suggest companion field of type completion.
-    private final Set<String> suggest_fields;
+    private final String es_index_config;
+    private final Path plan_cache;
+    private final CountDownLatch validated = new CountDownLatch(1);
+    private volatile FieldPlan plan;
+    private volatile FieldPlanChange last_change;
+    private volatile Enricher enricher;
+    private volatile FieldFingerprints fingerprints;
+    private volatile boolean external_versioning;
+    private volatile boolean wait_for_refresh;
+    private volatile IndexLag lag;
+    private final LongAdder stale_writes = new LongAdder();
+    private final DroppedFields dropped;
 
     /**
      * If the given Elasticsearch index does not exist, create it using the supplied configuration.
@@ -63,38 +117,211 @@ public class ElasticSearchIndexer implements IndexerConstants {
      */
     public ElasticSearchIndexer(String es_index_url, String es_index_config, String fedora_user, String fedora_pass)
         throws IOException {
-        this.client = new OkHttpClient.Builder().connectTimeout(60, TimeUnit.SECONDS).writeTimeout(60, TimeUnit.SECONDS)
-                                                .readTimeout(60, TimeUnit.SECONDS).build();
+        this(es_index_url, es_index_config, fedora_user, fedora_pass, default_client());
+    }
+
+    /**
+     * As above, but all requests to Fedora and Elasticsearch are made with the given client.
+     * This allows callers to add their own interceptors, for example to limit request rates.
+     *
+     * @param es_index_url
+     * @param es_index_config - Either file or resource path to index config. If null, use provided PASS configuration.
+     * @param fedora_user
+     * @param fedora_pass
+     * @param client
+     * @throws IOException
+     */
+    public ElasticSearchIndexer(String es_index_url, String es_index_config, String fedora_user, String fedora_pass,
+                                OkHttpClient client) throws IOException {
+        this(es_index_url, es_index_config, fedora_user, fedora_pass, client, null, true);
+    }
+
+    /**
+     * As above, but the field plan is cached in the given file. If the file holds a plan for the
+     * index and fail_fast is false, the index is checked in the background.
+     *
+     * @param es_index_url
+     * @param es_index_config - Either file or resource path to index config. If null, use provided PASS configuration.
+     * @param fedora_user
+     * @param fedora_pass
+     * @param client
+     * @param plan_cache - File to cache the field plan in, may be null
+     * @param fail_fast - Whether to check the index before returning even if there is a cached plan
+     * @throws IOException
+     */
+    public ElasticSearchIndexer(String es_index_url, String es_index_config, String fedora_user, String fedora_pass,
+                                OkHttpClient client, Path plan_cache, boolean fail_fast) throws IOException {
+        this.client = client;
         this.es_index_url = es_index_url.endsWith("/") ? es_index_url : es_index_url + "/";
+        this.es_index_config = es_index_config;
         this.fedora_cred = Credentials.basic(fedora_user, fedora_pass);
+        this.plan_cache = plan_cache;
+        this.dropped = new DroppedFields(this.es_index_url);
+
+        FieldPlan cached = plan_cache == null || fail_fast ? null : FieldPlan.read(plan_cache, this.es_index_url);
+
+        if (cached == null) {
+            use_plan(check_index());
+        } else {
+            LOG.info("Using cached field plan " + cached.version() + " until index is checked: " + es_index_url);
+            this.plan = cached;
 
+            Thread checker = new Thread(this::check_index_until_done, "index-check");
+            checker.setDaemon(true);
+            checker.start();
+        }
+    }
+
+    // Check the index, creating it if need be, and return the field plan for its mapping.
+    private FieldPlan check_index() throws IOException {
         JSONObject config = get_existing_index_configuration();
 
         if (config == null) {
             LOG.info("Index does not exist. Creating " + es_index_url + " with config " + es_index_config);
             config = load_index_configuration(es_index_config);
+            add_last_modified_mapping(config);
             create_index(config);
         } else {
             LOG.info("Found existing index " + es_index_url);
         }
 
         // Determine the available fields in the index from the configuration and which fields support completion.
+        return FieldPlan.from_index_configuration(config);
+    }
+
+    // Check the index in the background, retrying with backoff until it succeeds.
+    private void check_index_until_done() {
+        long delay = 1000;
+
+        while (true) {
+            try {
+                use_plan(check_index());
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not check index, retrying in " + delay + " ms: " + es_index_url, e);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            delay = Math.min(delay * 2, 60000);
+        }
+    }
+
+    // Switch to the plan of the index and save it for the next start. Return the change, or null if
+    // the version is the same.
+    private synchronized FieldPlanChange use_plan(FieldPlan checked) {
+        FieldPlan previous = plan;
+        FieldPlanChange change = null;
+
+        if (previous != null && !previous.version().equals(checked.version())) {
+            change = new FieldPlanChange(previous, checked);
+            last_change = change;
+            LOG.warn("Field plan " + previous.version() + " replaced by " + checked.version() + " from index "
+                     + es_index_url + ", newly enabled fields: " + change.enabled + ", disabled fields: "
+                     + change.disabled);
+        }
 
-        // The mappings key is either toplevel or inside an object representing the index.
-        if (!config.has("mappings")) {
-            Set<String> keys = config.keySet();
+        plan = checked;
 
-            if (keys.size() == 1) {
-                config = config.getJSONObject(keys.iterator().next());
+        if (plan_cache != null) {
+            try {
+                checked.write(plan_cache, es_index_url);
+            } catch (IOException e) {
+                LOG.warn("Could not save field plan: " + plan_cache, e);
             }
         }
 
-        JSONObject props = config.getJSONObject("mappings").getJSONObject("_doc").getJSONObject("properties");
-        this.supported_fields = new HashSet<>(props.keySet());
-        this.suggest_fields = supported_fields.stream()
-            .filter(f -> f.endsWith(SUGGEST_SUFFIX))
-            .map(f -> f.substring(0, f.length() - SUGGEST_SUFFIX.length()))
-            .collect(Collectors.toSet());
+        // Only once saved, so those waiting for the check find the plan in the cache
+        validated.countDown();
+
+        return change;
+    }
+
+    // Change of the field plan from one version of the mapping to the next.
+    public static class FieldPlanChange {
+        public final String previous_version;
+        public final String version;
+        public final Set<String> enabled;
+        public final Set<String> disabled;
+        public final long time = System.currentTimeMillis();
+
+        FieldPlanChange(FieldPlan previous, FieldPlan plan) {
+            this.previous_version = previous.version();
+            this.version = plan.version();
+
+            Set<String> enabled = new TreeSet<>(plan.supported_fields());
+            enabled.removeAll(previous.supported_fields());
+            this.enabled = Collections.unmodifiableSet(enabled);
+
+            Set<String> disabled = new TreeSet<>(previous.supported_fields());
+            disabled.removeAll(plan.supported_fields());
+            this.disabled = Collections.unmodifiableSet(disabled);
+        }
+    }
+
+    /**
+     * Read the mapping of the index again and switch to its plan if it changed. Documents of
+     * resources with newly enabled fields must be indexed again for the fields to be searchable.
+     * Reloads are made one at a time, so of several racing each other only the first finds the
+     * change, which is kept, see {@link #get_last_field_plan_change()}.
+     *
+     * @return the fields newly enabled by this reload, empty if there are none
+     * @throws IOException if the index cannot be read or no longer exists
+     */
+    public synchronized Set<String> reload_field_plan() throws IOException {
+        JSONObject config = get_existing_index_configuration();
+
+        if (config == null) {
+            throw new IOException("Index no longer exists: " + es_index_url);
+        }
+
+        FieldPlan reloaded = FieldPlan.from_index_configuration(config);
+
+        if (reloaded.version().equals(plan.version())) {
+            return Collections.emptySet();
+        }
+
+        return use_plan(reloaded).enabled;
+    }
+
+    // Return the last change of the field plan since startup, or null if there was none.
+    public FieldPlanChange get_last_field_plan_change() {
+        return last_change;
+    }
+
+    // Return the plan used to normalize documents.
+    public FieldPlan get_field_plan() {
+        return plan;
+    }
+
+    // Wait until the plan has been checked against the index. Return whether it was.
+    public boolean await_index_check(long timeout, TimeUnit unit) throws InterruptedException {
+        return validated.await(timeout, unit);
+    }
+
+    // Wait for the index to be checked before writing to it, failing like Elasticsearch being down if
+    // it is not checked soon. Otherwise, while a missing index is checked in the background, a write
+    // would create it with a dynamic mapping instead of es_index_config.
+    private void require_index() throws IOException {
+        try {
+            if (!validated.await(INDEX_CHECK_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Index not checked yet, not writing to it: " + es_index_url);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for index check: " + es_index_url);
+        }
+    }
+
+    // Return the client used when none is given, which callers may customize with newBuilder().
+    public static OkHttpClient default_client() {
+        return new OkHttpClient.Builder().connectTimeout(60, TimeUnit.SECONDS).writeTimeout(60, TimeUnit.SECONDS)
+                                         .readTimeout(60, TimeUnit.SECONDS).build();
     }
 
     // Create index es_index_url with the given configuration
@@ -115,6 +342,18 @@ public class ElasticSearchIndexer implements IndexerConstants {
         }
     }
 
+    // Map the field holding the last modified time of Fedora resources in a configuration for creating
+    // an index, unless it is mapped already. The field is kept in the source of documents, not searched.
+    private static void add_last_modified_mapping(JSONObject config) {
+        JSONObject mappings = config.optJSONObject("mappings");
+        JSONObject doc = mappings == null ? null : mappings.optJSONObject("_doc");
+        JSONObject props = doc == null ? null : doc.optJSONObject("properties");
+
+        if (props != null && !props.has(FEDORA_LAST_MODIFIED_FIELD)) {
+            props.put(FEDORA_LAST_MODIFIED_FIELD, new JSONObject().put("type", "long").put("index", false));
+        }
+    }
+
     // Return the index configuration specified as a file, resource, or URL.
     private JSONObject load_index_configuration(String es_index_config) throws IOException {
         boolean is_url = false;
@@ -185,14 +424,30 @@ public class ElasticSearchIndexer implements IndexerConstants {
         }
     }
 
+    // Representation of a Fedora resource and when it was last modified, -1 if not known.
+    public static class FedoraResource {
+        public final String json;
+        public final long last_modified;
+
+        public FedoraResource(String json, long last_modified) {
+            this.json = json;
+            this.last_modified = last_modified;
+        }
+    }
+
     // Return compact JSON-LD representation of Fedora resource without server triples
     // Return null if resource is now a tombstone.
-    private String get_fedora_resource(String uri) throws IOException {
+    public FedoraResource get_fedora_resource(String uri) throws IOException {
         Request get = new Request.Builder().url(uri).header("Authorization", fedora_cred)
                                            .header("Accept", FEDORA_ACCEPT_HEADER)
                                            .header("Prefer", FEDORA_PREFER_HEADER).build();
+        IndexerEvents.Fetch event = new IndexerEvents.Fetch();
+        event.uri = uri;
+        event.begin();
 
         try (Response response = client.newCall(get).execute()) {
+            event.status = response.code();
+
             if (!response.isSuccessful()) {
                 if (response.code() == 410) {
                     LOG.debug("Fedora resource was deleted: " + uri);
@@ -210,48 +465,250 @@ public class ElasticSearchIndexer implements IndexerConstants {
             }
 
             String doc = response.body().string();
+
+            if (event.isEnabled()) {
+                event.size = IndexerEvents.utf8_length(doc);
+            }
+
             if (!response.header("content-type", "application/ld+json").contains("json")) {
                 return null;
             }
-            return doc;
+
+            Date modified = response.headers().getDate("Last-Modified");
+            return new FedoraResource(doc, modified == null ? -1 : modified.getTime());
+        } finally {
+            event.commit();
+        }
+    }
+
+    // Embed fields of referenced resources in documents, or not if null.
+    public void set_enricher(Enricher enricher) {
+        this.enricher = enricher;
+    }
+
+    // Return a Fedora resource with the fields of resources it refers to added, or null if there is none.
+    public FedoraResource get_enriched_resource(String uri) throws IOException {
+        long start = System.currentTimeMillis();
+        FedoraResource resource = get_fedora_resource(uri);
+        Enricher enricher = this.enricher;
+
+        if (resource != null && enricher != null) {
+            resource = enricher.enrich(uri, resource);
+        }
+
+        record_lag(IndexLag.FETCH, start);
+
+        return resource;
+    }
+
+    // Forget what is cached about a Fedora resource which changed.
+    public void resource_changed(String uri) {
+        Enricher enricher = this.enricher;
+
+        if (enricher != null) {
+            enricher.invalidate(uri);
+        }
+    }
+
+    // Return the fields embedded from a changed Fedora resource in the documents of the given index
+    // referring to it, by Fedora URI of document. See update_fields.
+    public Map<String, JSONObject> get_dependent_updates(String uri, ElasticSearchIndexer index) throws IOException {
+        Enricher enricher = this.enricher;
+
+        if (enricher == null) {
+            return Collections.emptyMap();
+        }
+
+        return enricher.cascade(index.find_referring(uri, enricher.get_link_fields()));
+    }
+
+    // Return the given link fields of the documents in this index holding a Fedora URI in any of them,
+    // by Fedora URI of document. Link fields are keyword fields normalized like @id, so the term
+    // matches however the URI was written. Every document indexed is found, whoever indexed it.
+    public Map<String, JSONObject> find_referring(String uri, Collection<String> link_fields) throws IOException {
+        Map<String, JSONObject> result = new LinkedHashMap<>();
+        JSONArray should = new JSONArray();
+        JSONArray source = new JSONArray().put("@id");
+
+        for (String link : link_fields) {
+            should.put(new JSONObject().put("term", new JSONObject().put(link, uri)));
+            source.put(link);
+        }
+
+        JSONObject query = new JSONObject().put("size", REFERRING_PAGE_SIZE).put("sort", new JSONArray().put("_doc"))
+                                           .put("_source", source)
+                                           .put("query", new JSONObject().put("bool", new JSONObject()
+                                               .put("should", should).put("minimum_should_match", 1)));
+
+        // Almost every resource is referred to by less than a page of documents, so a scroll is only
+        // opened, starting over, when the first page is full.
+        if (add_referring(post_search(es_index_url + "_search", query), result) < REFERRING_PAGE_SIZE) {
+            return result;
+        }
+
+        String scroll_url = HttpUrl.get(es_index_url).resolve("/_search/scroll").toString();
+        JSONObject page = post_search(es_index_url + "_search?scroll=" + REFERRING_SCROLL, query);
+        String scroll_id = null;
+
+        try {
+            while (true) {
+                scroll_id = page.optString("_scroll_id", scroll_id);
+
+                if (add_referring(page, result) < REFERRING_PAGE_SIZE || scroll_id == null) {
+                    break;
+                }
+
+                page = post_search(scroll_url, new JSONObject().put("scroll", REFERRING_SCROLL)
+                                                               .put("scroll_id", scroll_id));
+            }
+        } finally {
+            if (scroll_id != null) {
+                clear_scroll(scroll_url, scroll_id);
+            }
+        }
+
+        return result;
+    }
+
+    // Add the documents of a page of search results by Fedora URI, returning the number of hits.
+    private static int add_referring(JSONObject page, Map<String, JSONObject> result) {
+        JSONArray hits = page.getJSONObject("hits").getJSONArray("hits");
+
+        for (int i = 0; i < hits.length(); i++) {
+            JSONObject doc = hits.getJSONObject(i).optJSONObject("_source");
+
+            if (doc != null && doc.has("@id")) {
+                result.put(doc.getString("@id"), doc);
+            }
+        }
+
+        return hits.length();
+    }
+
+    private JSONObject post_search(String url, JSONObject body) throws IOException {
+        Request post = new Request.Builder().url(url).post(RequestBody.create(JSON, body.toString())).build();
+
+        try (Response response = client.newCall(post).execute()) {
+            String result = response.body().string();
+
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to search index: " + url + " " + response.code() + " " + result);
+            }
+
+            return new JSONObject(result);
+        }
+    }
+
+    private void clear_scroll(String scroll_url, String scroll_id) {
+        RequestBody body = RequestBody.create(JSON, new JSONObject().put("scroll_id", scroll_id).toString());
+        Request delete = new Request.Builder().url(scroll_url).delete(body).build();
+
+        try (Response response = client.newCall(delete).execute()) {
+            if (!response.isSuccessful()) {
+                LOG.debug("Could not clear scroll: " + response.code());
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not clear scroll", e);
+        }
+    }
+
+    // Return the time in milliseconds a Fedora resource was last modified, using a HEAD request.
+    // Return -1 if Fedora does not say, for example because the resource was deleted.
+    public long get_fedora_last_modified(String uri) throws IOException {
+        Request head = new Request.Builder().url(uri).head().header("Authorization", fedora_cred).build();
+
+        try (Response response = client.newCall(head).execute()) {
+            if (!response.isSuccessful()) {
+                if (response.code() == 404 || response.code() == 410) {
+                    return -1;
+                }
+
+                throw new IOException("Failed to check Fedora resource: " + uri + " " + response.code());
+            }
+
+            Date modified = response.headers().getDate("Last-Modified");
+
+            return modified == null ? -1 : modified.getTime();
         }
     }
 
     // Return URL safe base64 encoding of string.
-    private String base64_encode(String s) {
+    private static String base64_encode(String s) {
         return Base64.getUrlEncoder().encodeToString(s.getBytes(StandardCharsets.UTF_8));
     }
 
     // Return URL safe document id.
-    private String get_document_id(String fedora_uri) throws IOException {
+    public static String get_document_id(String fedora_uri) throws IOException {
         return base64_encode(new URL(fedora_uri).getPath());
     }
 
     private String get_create_document_url(String doc_id) throws IOException {
-        return es_index_url + "_doc/" + doc_id + "?pretty";
+        return es_index_url + "_doc/" + doc_id + "?pretty" + (wait_for_refresh ? "&refresh=wait_for" : "");
     }
 
     // Do any normalization necessary before indexing.
-    // Ignore and warn about keys not in the configuration or with object values
+    // Ignore keys not in the configuration or with object values, counting them in a periodic summary
+
+    // The last modified time of the Fedora resource is kept as a fingerprint of the version indexed.
+    private String normalize_document(String json, long last_modified) {
+        FieldPlan plan = this.plan;
+        JSONObject o = normalize_fields(json, last_modified, plan);
+
+        for (String key : JSONObject.getNames(o)) {
+            if (plan.suggest_fields().contains(key)) {
+                o.put(key + SUGGEST_SUFFIX, construct_completions(o.get(key).toString(), o));
+            }
+        }
+
+        return o.toString();
+    }
+
+    // Return the fields of a document to index, without completions.
+    private JSONObject normalize_fields(String json, long last_modified, FieldPlan plan) {
+        IndexerEvents.Normalize event = new IndexerEvents.Normalize();
+        event.begin();
 
-    private String normalize_document(String json) {
         JSONObject o = new JSONObject(json);
+        String uri = o.optString("@id", null);
+        int dropped_count = 0;
 
         for (String key : JSONObject.getNames(o)) {
             Object value = o.get(key);
 
-            if (!supported_fields.contains(key)) {
-                LOG.warn("Unexpected property ignored: " + key + ", " + value);
+            if (!plan.supported_fields().contains(key)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Unexpected property ignored: " + key + ", " + value);
+                }
+
+                dropped.drop(key, "unmapped", value);
                 o.remove(key);
+                dropped_count++;
             } else if (JSONObject.class.isInstance(value)) {
-                LOG.warn("Property with object value ignored: " + key + ", " + value);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Property with object value ignored: " + key + ", " + value);
+                }
+
+                dropped.drop(key, "object", value);
                 o.remove(key);
-            } else if (suggest_fields.contains(key)) {
-                o.put(key + SUGGEST_SUFFIX, construct_completions(value.toString(), o));
+                dropped_count++;
             }
         }
 
-        return o.toString();
+        // Only written when mapped, so a strict mapping does not reject documents
+        if (last_modified >= 0 && plan.supported_fields().contains(FEDORA_LAST_MODIFIED_FIELD)) {
+            o.put(FEDORA_LAST_MODIFIED_FIELD, last_modified);
+        }
+
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.size = IndexerEvents.utf8_length(json);
+            event.dropped = dropped_count;
+            event.commit();
+        }
+
+        return o;
     }
 
     // Text with n tokens separated by whitespace is turned into n completions,
@@ -282,28 +739,180 @@ public class ElasticSearchIndexer implements IndexerConstants {
         return result;
     }
 
+    // Return the document for a Fedora resource as normalized for this index.
+    public String normalize(FedoraResource resource) {
+        return normalize_document(resource.json, resource.last_modified);
+    }
+
+    public String get_index_url() {
+        return es_index_url;
+    }
+
+    // Return the document for a Fedora resource as it would be indexed, or null if there is none.
+    public String get_document(String fedora_uri) throws IOException {
+        FedoraResource resource = get_enriched_resource(fedora_uri);
+
+        if (resource == null) {
+            return null;
+        }
+
+        return normalize_document(resource.json, resource.last_modified);
+    }
+
+    /**
+     * Send only the fields which changed when updating a document indexed before, remembering the
+     * fields of up to the given number of documents. A document not remembered is indexed in full.
+     * Zero, the default, always indexes documents in full.
+     *
+     * Fields are remembered as fingerprints of what was last sent, so documents must only be written
+     * to the index by this indexer meanwhile. Elasticsearch still indexes the merged document again,
+     * what is saved is building and sending the fields which did not change, completions included.
+     *
+     * Partial updates cannot carry an external version, so they cannot be combined with external
+     * versioning.
+     */
+    public void set_partial_updates(int max_documents) {
+        if (max_documents > 0 && external_versioning) {
+            throw new IllegalStateException("Partial updates cannot be combined with external versioning");
+        }
+
+        this.fingerprints = max_documents > 0 ? new FieldFingerprints(max_documents) : null;
+    }
+
+    /**
+     * Index documents with the last modified time of their Fedora resource as an external version,
+     * so that older versions do not replace newer ones. Off by default. Documents of resources
+     * without a last modified time are not versioned.
+     *
+     * Fedora gives last modified times to the second and versions equal to the one indexed are
+     * accepted, so of two versions modified within the same second the older one may be written
+     * last and stay until the resource changes again. Cannot be combined with partial updates.
+     */
+    public void set_external_versioning(boolean external_versioning) {
+        if (external_versioning && fingerprints != null) {
+            throw new IllegalStateException("Partial updates cannot be combined with external versioning");
+        }
+
+        this.external_versioning = external_versioning;
+    }
+
+    /**
+     * Record how long stages of handling messages take, or not if null. Fetching resources and
+     * writing documents are timed, and handling a message records its lag end to end.
+     */
+    public void set_lag(IndexLag lag) {
+        this.lag = lag;
+    }
+
+    /**
+     * Whether writes wait until the next refresh of the index has made them searchable before they
+     * are acknowledged. Lag is then measured until documents are searchable rather than written. Off
+     * by default, as a refresh may be a second away and writes are slower for it.
+     */
+    public void set_wait_for_refresh(boolean wait_for_refresh) {
+        this.wait_for_refresh = wait_for_refresh;
+    }
+
+    private void record_lag(String stage, long start) {
+        IndexLag lag = this.lag;
+
+        if (lag != null) {
+            lag.record_since(stage, start);
+        }
+    }
+
+    // Count properties dropped from documents in the given registry, and log a summary of them at most
+    // once an interval.
+    public void set_dropped_field_metrics(MetricsRegistry metrics, long summary_millis) {
+        dropped.set_metrics(metrics);
+        dropped.set_summary_interval(summary_millis);
+    }
+
+    // Log a summary of the properties dropped since the last one, for example before stopping.
+    public void log_dropped_fields() {
+        dropped.log_summary(true);
+    }
+
+    // Return how many writes were ignored because a newer version was indexed.
+    public long get_stale_writes() {
+        return stale_writes.sum();
+    }
+
     // Create or update the document corresponding to a Fedora resource in Elasticsearch.
+    // Return the document sent, or with partial updates only the fields sent.
     public String update_document(String fedora_uri) throws IOException {
         LOG.debug("Updating document for Fedora resource: " + fedora_uri);
 
-        String fedora_json = get_fedora_resource(fedora_uri);
+        FedoraResource resource = get_enriched_resource(fedora_uri);
 
-        if (fedora_json == null) {
+        if (resource == null) {
             return null;
         }
 
-        String doc = normalize_document(fedora_json);
+        require_index();
+
+        FieldPlan plan = this.plan;
+        FieldFingerprints fingerprints = this.fingerprints;
+        JSONObject o = normalize_fields(resource.json, resource.last_modified, plan);
         String doc_id = get_document_id(fedora_uri);
+        Map<String, Long> current = null;
+
+        if (fingerprints != null) {
+            current = FieldFingerprints.fingerprint(o);
+            FieldFingerprints.Sent previous = fingerprints.get(fedora_uri);
+
+            if (previous != null) {
+                JSONObject changes = diff_fields(o, current, previous.fields, plan);
+
+                if (changes.length() == 0) {
+                    LOG.debug("Document unchanged: " + fedora_uri);
+                    return changes.toString();
+                }
+
+                fingerprints.remove(fedora_uri);
+                long start = System.currentTimeMillis();
+
+                if (send_partial_update(fedora_uri, doc_id, changes)) {
+                    record_lag(IndexLag.WRITE, start);
+                    fingerprints.put(fedora_uri, current);
+                    return changes.toString();
+                }
+
+                LOG.debug("Document to update is missing, indexing in full: " + fedora_uri);
+            }
+        }
+
+        for (String key : JSONObject.getNames(o)) {
+            if (plan.suggest_fields().contains(key)) {
+                o.put(key + SUGGEST_SUFFIX, construct_completions(o.get(key).toString(), o));
+            }
+        }
+
+        String doc = o.toString();
         String doc_url = get_create_document_url(doc_id);
 
+        if (external_versioning && resource.last_modified >= 0) {
+            doc_url += "&version=" + resource.last_modified + "&version_type=" + VERSION_TYPE;
+        }
+
         RequestBody body = RequestBody.create(JSON, doc);
         Request post = new Request.Builder().url(doc_url).post(body).build();
+        long start = System.currentTimeMillis();
+        IndexerEvents.Write event = new IndexerEvents.Write();
+        event.begin();
 
         try (Response response = client.newCall(post).execute()) {
+            commit_write(event, "index", fedora_uri, 1, doc, response.code());
             String result = response.body().string();
 
             if (response.isSuccessful()) {
+                record_lag(IndexLag.WRITE, start);
                 LOG.debug("Update success: " + response);
+            } else if (response.code() == 409) {
+                // A newer version is indexed, which stays
+                stale_writes.increment();
+                LOG.debug("Older version of document ignored: " + fedora_uri);
+                return doc;
             } else {
                 String msg = "Update failure: " + result;
                 LOG.error(msg);
@@ -311,18 +920,247 @@ public class ElasticSearchIndexer implements IndexerConstants {
             }
         }
 
+        if (fingerprints != null) {
+            fingerprints.put(fedora_uri, current);
+        }
+
         return doc;
     }
 
+    // Return the fields of a document which changed since it was last sent, with the completions of
+    // those which have them. Fields no longer in the document are set to null.
+    private JSONObject diff_fields(JSONObject o, Map<String, Long> current, Map<String, Long> previous,
+                                   FieldPlan plan) {
+        JSONObject changes = new JSONObject();
+
+        for (String key : current.keySet()) {
+            if (!current.get(key).equals(previous.get(key))) {
+                changes.put(key, o.get(key));
+
+                if (plan.suggest_fields().contains(key)) {
+                    changes.put(key + SUGGEST_SUFFIX, construct_completions(o.get(key).toString(), o));
+                }
+            }
+        }
+
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key) && plan.supported_fields().contains(key)) {
+                changes.put(key, JSONObject.NULL);
+
+                if (plan.suggest_fields().contains(key)) {
+                    changes.put(key + SUGGEST_SUFFIX, JSONObject.NULL);
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    // Set some fields of a document. Return false if the document does not exist.
+    private boolean send_partial_update(String fedora_uri, String doc_id, JSONObject changes) throws IOException {
+        String update = new JSONObject().put("doc", changes).toString();
+        RequestBody body = RequestBody.create(JSON, update);
+        String url = es_index_url + "_doc/" + doc_id + "/_update" + (wait_for_refresh ? "?refresh=wait_for" : "");
+        Request post = new Request.Builder().url(url).post(body).build();
+        IndexerEvents.Write event = new IndexerEvents.Write();
+        event.begin();
+
+        try (Response response = client.newCall(post).execute()) {
+            commit_write(event, "update", fedora_uri, 1, update, response.code());
+            String result = response.body().string();
+
+            if (response.code() == 404) {
+                return false;
+            }
+
+            if (!response.isSuccessful()) {
+                String msg = "Partial update failure: " + result;
+                LOG.error(msg);
+                throw new IOException(msg);
+            }
+
+            LOG.debug("Partial update success: " + changes.keySet());
+            return true;
+        }
+    }
+
+    // Index already normalized documents, keyed by Fedora URI, with a single bulk request.
+    // Nothing is fetched from Fedora.
+    public void index_documents(Map<String, String> docs) throws IOException {
+        if (docs.isEmpty()) {
+            return;
+        }
+
+        forget_fingerprints(docs.keySet());
+
+        StringBuilder bulk = new StringBuilder();
+
+        for (Map.Entry<String, String> entry : docs.entrySet()) {
+            JSONObject meta = new JSONObject().put("_id", get_document_id(entry.getKey()));
+
+            if (external_versioning) {
+                long version = new JSONObject(entry.getValue()).optLong(FEDORA_LAST_MODIFIED_FIELD, -1);
+
+                if (version >= 0) {
+                    meta.put("version", version).put("version_type", VERSION_TYPE);
+                }
+            }
+
+            JSONObject action = new JSONObject().put("index", meta);
+
+            bulk.append(action).append('\n').append(entry.getValue()).append('\n');
+        }
+
+        send_bulk(bulk.toString(), docs.size(), false);
+    }
+
+    // Set fields of existing documents, keyed by Fedora URI, with a single bulk request. Fields not in
+    // the field plan are left out. Documents which do not exist are ignored.
+    public void update_fields(Map<String, JSONObject> updates) throws IOException {
+        forget_fingerprints(updates.keySet());
+
+        FieldPlan plan = this.plan;
+        StringBuilder bulk = new StringBuilder();
+        int count = 0;
+
+        for (Map.Entry<String, JSONObject> entry : updates.entrySet()) {
+            JSONObject fields = new JSONObject();
+
+            for (String key : entry.getValue().keySet()) {
+                if (plan.supported_fields().contains(key)) {
+                    fields.put(key, entry.getValue().get(key));
+                }
+            }
+
+            if (fields.length() == 0) {
+                continue;
+            }
+
+            JSONObject action = new JSONObject().put("update", new JSONObject().put("_id",
+                get_document_id(entry.getKey())).put("retry_on_conflict", UPDATE_RETRIES));
+
+            bulk.append(action).append('\n').append(new JSONObject().put("doc", fields)).append('\n');
+            count++;
+        }
+
+        if (count > 0) {
+            send_bulk(bulk.toString(), count, true);
+        }
+    }
+
+    // Delete documents by id with a single bulk request. Documents which do not exist are ignored.
+    public void delete_documents(Collection<String> doc_ids) throws IOException {
+        if (doc_ids.isEmpty()) {
+            return;
+        }
+
+        StringBuilder bulk = new StringBuilder();
+
+        for (String doc_id : doc_ids) {
+            bulk.append(new JSONObject().put("delete", new JSONObject().put("_id", doc_id))).append('\n');
+        }
+
+        send_bulk(bulk.toString(), doc_ids.size(), false);
+    }
+
+    // Forget the fields last sent of documents written some other way.
+    private void forget_fingerprints(Collection<String> fedora_uris) {
+        FieldFingerprints fingerprints = this.fingerprints;
+
+        if (fingerprints != null) {
+            fedora_uris.forEach(fingerprints::remove);
+        }
+    }
+
+    // Record a write to the index which was answered with the given status as a flight recorder event.
+    // The payload sent is null if there was none.
+    private void commit_write(IndexerEvents.Write event, String action, String fedora_uri, int documents,
+                              String payload, int status) {
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.index = es_index_url;
+            event.uri = fedora_uri;
+            event.action = action;
+            event.documents = documents;
+            event.size = payload == null ? 0 : IndexerEvents.utf8_length(payload);
+            event.status = status;
+            event.commit();
+        }
+    }
+
+    // Send newline delimited bulk actions, failing if any action failed. Actions on documents which
+    // do not exist are not counted as failed if ignore_missing is true.
+    private void send_bulk(String bulk, int count, boolean ignore_missing) throws IOException {
+        require_index();
+
+        RequestBody body = RequestBody.create(NDJSON, bulk);
+        String url = es_index_url + "_doc/_bulk" + (wait_for_refresh ? "?refresh=wait_for" : "");
+        Request post = new Request.Builder().url(url).post(body).build();
+        IndexerEvents.Write event = new IndexerEvents.Write();
+        event.begin();
+
+        try (Response response = client.newCall(post).execute()) {
+            commit_write(event, "bulk", null, count, bulk, response.code());
+            String result = response.body().string();
+
+            if (!response.isSuccessful()) {
+                String msg = "Bulk update failure: " + result;
+                LOG.error(msg);
+                throw new IOException(msg);
+            }
+
+            JSONObject o = new JSONObject(result);
+
+            if (o.optBoolean("errors")) {
+                JSONArray items = o.getJSONArray("items");
+                JSONObject first_error = null;
+                int failed = 0;
+
+                for (int i = 0; i < items.length(); i++) {
+                    JSONObject action = items.getJSONObject(i);
+                    String name = action.keys().next();
+                    JSONObject item = action.getJSONObject(name);
+
+                    if (item.optInt("status") == 409 && name.equals("index") && external_versioning) {
+                        // Documents are indexed with a version, and a newer version is indexed
+                        stale_writes.increment();
+                    } else if (item.has("error") && !(ignore_missing && item.optInt("status") == 404)) {
+                        failed++;
+
+                        if (first_error == null) {
+                            first_error = item;
+                        }
+                    }
+                }
+
+                if (failed > 0) {
+                    String msg = "Bulk update failed for " + failed + " of " + count + " documents: " + first_error;
+                    LOG.error(msg);
+                    throw new IOException(msg);
+                }
+            }
+
+            LOG.debug("Bulk update success: " + count + " documents");
+        }
+    }
+
     private void delete_document(String fedora_uri) throws IOException {
         LOG.debug("Deleting document for Fedora resource: " + fedora_uri);
 
+        require_index();
+
+        forget_fingerprints(Collections.singleton(fedora_uri));
+
         String doc_id = get_document_id(fedora_uri);
         String doc_url = get_create_document_url(doc_id);
 
         Request delete = new Request.Builder().url(doc_url).delete().build();
+        IndexerEvents.Write event = new IndexerEvents.Write();
+        event.begin();
 
         try (Response response = client.newCall(delete).execute()) {
+            commit_write(event, "delete", fedora_uri, 1, null, response.code());
             String result = response.body().string();
 
             if (response.isSuccessful()) {
@@ -336,6 +1174,8 @@ public class ElasticSearchIndexer implements IndexerConstants {
     public void handle(FedoraMessage m) throws IOException {
         LOG.debug("Handling Fedora message: " + m);
 
+        resource_changed(m.getResourceURI());
+
         switch (m.getAction()) {
             case CREATED:
             case MODIFIED:
@@ -347,5 +1187,13 @@ public class ElasticSearchIndexer implements IndexerConstants {
             default:
                 break;
         }
+
+        IndexLag lag = this.lag;
+
+        if (lag != null) {
+            lag.written(m.getEventTime());
+        }
+
+        update_fields(get_dependent_updates(m.getResourceURI(), this));
     }
 }
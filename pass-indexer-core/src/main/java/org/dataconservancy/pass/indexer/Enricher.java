@@ -0,0 +1,310 @@
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dataconservancy.pass.indexer.ElasticSearchIndexer.FedoraResource;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embeds fields of referenced resources in the documents of the resources referring to them, so
+ * that searches need not resolve the references themselves. For each configured link field, the
+ * Fedora URIs it holds are fetched and the chosen fields of each target are added to the document
+ * as link_field, for example funder_name for the name of the resource in the funder field. The
+ * added fields must be in the mapping of the index to be kept.
+ *
+ * Targets are kept in a bounded cache, least recently used first out, for a limited time. Events
+ * for a target remove it from the cache at once, so the time limit only matters for changes the
+ * indexer is not told about. Only the fields embedded are cached, not whole resources.
+ *
+ * When a target changes, the fields embedded from it can be recomputed for the documents referring
+ * to it, which are found by searching the index for the target in their link fields. See cascade.
+ */
+public class Enricher {
+    private static final Logger LOG = LoggerFactory.getLogger(Enricher.class);
+
+    // A deleted or unreadable target, cached so it is not fetched again
+    private static final JSONObject MISSING = new JSONObject();
+
+    private static class Cached {
+        final JSONObject fields;
+        final long expires;
+
+        Cached(JSONObject fields, long expires) {
+            this.fields = fields;
+            this.expires = expires;
+        }
+    }
+
+    private final ElasticSearchIndexer fetcher;
+    private final Map<String, List<String>> links;
+    private final Set<String> target_fields = new LinkedHashSet<>();
+    private final int max_entries;
+    private final long ttl_nanos;
+    private final Map<String, Cached> cache;
+
+    // Counts invalidations, so a target fetched while it changed is not cached
+    private long invalidations;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder cascaded;
+
+    /**
+     * @param fetcher - Indexer to fetch targets from Fedora with
+     * @param links - Fields of the targets to embed, by link field
+     * @param max_entries - Most targets cached
+     * @param ttl_millis - Longest a target is cached
+     * @param metrics - Registry to add the cache metrics to
+     */
+    public Enricher(ElasticSearchIndexer fetcher, Map<String, List<String>> links, int max_entries, long ttl_millis,
+                    MetricsRegistry metrics) {
+        this.fetcher = fetcher;
+        this.links = new LinkedHashMap<>(links);
+        this.max_entries = max_entries;
+        this.ttl_nanos = TimeUnit.MILLISECONDS.toNanos(ttl_millis);
+        this.cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > Enricher.this.max_entries;
+            }
+        };
+
+        links.values().forEach(target_fields::addAll);
+
+        String help = "Lookups of referenced resources in the enrichment cache, by outcome";
+        hits = metrics.counter("pass_indexer_enrich_lookups_total", help, "outcome", "hit");
+        misses = metrics.counter("pass_indexer_enrich_lookups_total", help, "outcome", "miss");
+        metrics.gauge("pass_indexer_enrich_cache_size", "Referenced resources in the enrichment cache",
+                      this::size);
+        cascaded = metrics.counter("pass_indexer_enrich_cascaded_total",
+                                   "Documents updated because a resource they embed fields of changed");
+    }
+
+    /**
+     * Parse link fields given as link=field+field, for example funder=name+localKey.
+     *
+     * @param spec - Link fields separated by commas
+     * @return the fields to embed by link field
+     */
+    public static Map<String, List<String>> parse_links(String spec) {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+
+        for (String link : spec.split(",")) {
+            String[] parts = link.trim().split("=", 2);
+
+            if (parts.length != 2 || parts[0].isEmpty() || parts[1].isEmpty()) {
+                throw new IllegalArgumentException("Link field is not link=field+field: " + link);
+            }
+
+            result.computeIfAbsent(parts[0], k -> new ArrayList<>()).addAll(Arrays.asList(parts[1].split("\\+")));
+        }
+
+        return result;
+    }
+
+    // Return the link fields whose targets are embedded.
+    public Set<String> get_link_fields() {
+        return links.keySet();
+    }
+
+    // Return the resource with the fields of its targets added.
+    public FedoraResource enrich(String uri, FedoraResource resource) throws IOException {
+        JSONObject o;
+
+        try {
+            o = new JSONObject(resource.json);
+        } catch (JSONException e) {
+            return resource;
+        }
+
+        // A resource with fields to embed may be referred to, and is then about to be needed to update
+        // the documents referring to it
+        JSONObject fields = select_fields(o);
+
+        if (fields.length() > 0) {
+            cache(uri, fields, invalidations());
+        }
+
+        boolean enriched = false;
+
+        for (String link : links.keySet()) {
+            List<String> link_targets = get_targets(o.opt(link));
+
+            if (!link_targets.isEmpty()) {
+                enriched = true;
+                embed(o, link, link_targets, false);
+            }
+        }
+
+        return enriched ? new FedoraResource(o.toString(), resource.last_modified) : resource;
+    }
+
+    // Return the Fedora URIs in the value of a link field.
+    private static List<String> get_targets(Object value) {
+        List<String> result = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+
+        if (value instanceof JSONArray) {
+            ((JSONArray) value).forEach(values::add);
+        } else if (value != null) {
+            values.add(value);
+        }
+
+        for (Object v : values) {
+            String uri = v.toString();
+
+            if (uri.startsWith("http://") || uri.startsWith("https://")) {
+                result.add(uri);
+            }
+        }
+
+        return result;
+    }
+
+    // Add the fields of the targets of a link field to a document, a single value or an array of
+    // several. Fields none of the targets have are left out, or set to null if clear is true.
+    private void embed(JSONObject doc, String link, List<String> targets, boolean clear) throws IOException {
+        for (String field : links.get(link)) {
+            JSONArray embedded = new JSONArray();
+
+            for (String target : targets) {
+                Object value = get_target(target).opt(field);
+
+                if (value instanceof JSONArray) {
+                    ((JSONArray) value).forEach(embedded::put);
+                } else if (value != null) {
+                    embedded.put(value);
+                }
+            }
+
+            if (embedded.length() > 0) {
+                doc.put(link + "_" + field, embedded.length() > 1 ? embedded : embedded.get(0));
+            } else if (clear) {
+                doc.put(link + "_" + field, JSONObject.NULL);
+            }
+        }
+    }
+
+    /**
+     * Return the embedded fields of the documents referring to a changed target, recomputed from all
+     * of their targets. The target must have been invalidated first.
+     *
+     * @param referring - Link fields of the documents referring to the target, by Fedora URI of
+     *        document, as found in the index. See get_link_fields.
+     * @return the embedded fields by Fedora URI of document, fields no longer embedded set to null
+     * @throws IOException if a target could not be fetched
+     */
+    public Map<String, JSONObject> cascade(Map<String, JSONObject> referring) throws IOException {
+        Map<String, JSONObject> result = new LinkedHashMap<>();
+
+        for (Map.Entry<String, JSONObject> doc : referring.entrySet()) {
+            JSONObject fields = new JSONObject();
+
+            for (String link : links.keySet()) {
+                List<String> targets = get_targets(doc.getValue().opt(link));
+
+                if (!targets.isEmpty()) {
+                    embed(fields, link, targets, true);
+                }
+            }
+
+            if (fields.length() > 0) {
+                result.put(doc.getKey(), fields);
+            }
+        }
+
+        cascaded.add(result.size());
+
+        return result;
+    }
+
+    // Return the fields to embed of a target, from the cache if possible.
+    private JSONObject get_target(String uri) throws IOException {
+        long seen;
+
+        synchronized (cache) {
+            Cached cached = cache.get(uri);
+
+            if (cached != null && System.nanoTime() - cached.expires < 0) {
+                hits.increment();
+                return cached.fields;
+            }
+
+            seen = invalidations;
+        }
+
+        misses.increment();
+
+        FedoraResource target = fetcher.get_fedora_resource(uri);
+        JSONObject fields = MISSING;
+
+        if (target != null) {
+            try {
+                fields = select_fields(new JSONObject(target.json));
+            } catch (JSONException e) {
+                LOG.warn("Referenced resource is not a JSON object: " + uri);
+            }
+        }
+
+        cache(uri, fields, seen);
+
+        return fields;
+    }
+
+    // Return the fields of a target which are embedded.
+    private JSONObject select_fields(JSONObject target) {
+        JSONObject fields = new JSONObject();
+
+        for (String field : target_fields) {
+            if (target.has(field)) {
+                fields.put(field, target.get(field));
+            }
+        }
+
+        return fields;
+    }
+
+    private long invalidations() {
+        synchronized (cache) {
+            return invalidations;
+        }
+    }
+
+    // Cache the fields of a target, unless a target was invalidated since they were read.
+    private void cache(String uri, JSONObject fields, long seen) {
+        synchronized (cache) {
+            if (invalidations == seen) {
+                cache.put(uri, new Cached(fields, System.nanoTime() + ttl_nanos));
+            }
+        }
+    }
+
+    // Forget a target which changed.
+    public void invalidate(String uri) {
+        synchronized (cache) {
+            cache.remove(uri);
+            invalidations++;
+        }
+    }
+
+    public long size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+}
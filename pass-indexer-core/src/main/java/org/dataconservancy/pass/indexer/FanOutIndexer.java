@@ -0,0 +1,171 @@
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dataconservancy.pass.indexer.ElasticSearchIndexer.FedoraResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles Fedora messages for several indexes. Each resource is fetched from Fedora once and
+ * handed to the sink of every index, which normalizes and writes it on its own thread. A message
+ * is handled once it is queued by every sink, so a document which a sink later fails to write is
+ * not retried by redelivering the message. Sinks with a journal keep the URIs of such documents,
+ * which are indexed again by {@link #replay()}.
+ *
+ * With a {@link TypeRouter}, each resource is written to only one of the indexes of the router,
+ * chosen by its types. Sinks of indexes not known to the router get every resource. A deletion
+ * is routed by the types in the message, or goes to every index if the message has none.
+ *
+ * Fields embedded from a changed resource are updated in the documents referring to it in every
+ * index at once, rather than through the sinks. Documents missing from an index are skipped.
+ */
+public class FanOutIndexer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FanOutIndexer.class);
+
+    private final List<IndexSink> sinks;
+    private final TypeRouter router;
+
+    // Sinks of the indexes of the router by index URL, and the sinks getting every resource
+    private final Map<String, IndexSink> routed = new LinkedHashMap<>();
+    private final List<IndexSink> unrouted = new ArrayList<>();
+
+    // Fetches resources from Fedora for every sink
+    private final ElasticSearchIndexer fetcher;
+
+    /**
+     * @param sinks - At least one sink. Resources are fetched with the Fedora credentials of the first.
+     */
+    public FanOutIndexer(List<IndexSink> sinks) {
+        this(sinks, null);
+    }
+
+    /**
+     * @param sinks - At least one sink, including one for every index of the router. Resources are
+     *        fetched with the Fedora credentials of the first.
+     * @param router - Chooses the index of each resource, or null to write every resource to every index
+     */
+    public FanOutIndexer(List<IndexSink> sinks, TypeRouter router) {
+        if (sinks.isEmpty()) {
+            throw new IllegalArgumentException("No index sinks given");
+        }
+
+        this.sinks = Collections.unmodifiableList(new ArrayList<>(sinks));
+        this.fetcher = sinks.get(0).get_indexer();
+        this.router = router;
+
+        for (IndexSink sink : sinks) {
+            if (router != null && router.get_indexes().contains(sink.get_name())) {
+                routed.put(sink.get_name(), sink);
+            } else {
+                unrouted.add(sink);
+            }
+        }
+
+        if (router != null && !routed.keySet().containsAll(router.get_indexes())) {
+            throw new IllegalArgumentException("No index sink given for some indexes of the router");
+        }
+    }
+
+    public List<IndexSink> get_sinks() {
+        return sinks;
+    }
+
+    public void handle(FedoraMessage m) throws IOException {
+        LOG.debug("Handling Fedora message: " + m);
+
+        fetcher.resource_changed(m.getResourceURI());
+
+        switch (m.getAction()) {
+            case CREATED:
+            case MODIFIED:
+                FedoraResource resource = fetcher.get_enriched_resource(m.getResourceURI());
+
+                if (resource != null) {
+                    targets(m, resource).forEach(sink -> sink.submit(m.getResourceURI(), resource, m.getEventTime()));
+                }
+                break;
+            case DELETED:
+                targets(m, null).forEach(sink -> sink.submit(m.getResourceURI(), null, m.getEventTime()));
+                break;
+            default:
+                break;
+        }
+
+        update_dependents(m.getResourceURI());
+    }
+
+    /**
+     * Index again the documents which sinks journaled but did not write before the last stop. Each
+     * resource is fetched again, and its document deleted if it is gone. Documents which cannot be
+     * fetched stay in the journal until the next start.
+     */
+    public void replay() {
+        for (IndexSink sink : sinks) {
+            List<String> uris = sink.get_unwritten();
+
+            if (!uris.isEmpty()) {
+                LOG.info("Indexing " + uris.size() + " documents not written to " + sink.get_name() + " again");
+            }
+
+            for (String uri : uris) {
+                try {
+                    sink.resubmit(uri, fetcher.get_enriched_resource(uri));
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not index " + uri + " in " + sink.get_name() + " again", e);
+                }
+            }
+        }
+    }
+
+    // Update the fields embedded from a changed resource in every index, each searched for the
+    // documents referring to it. An index which fails is logged and skipped, like a sink which drops
+    // documents.
+    private void update_dependents(String uri) {
+        for (IndexSink sink : sinks) {
+            try {
+                ElasticSearchIndexer indexer = sink.get_indexer();
+                indexer.update_fields(fetcher.get_dependent_updates(uri, indexer));
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not update documents referring to " + uri + " in " + sink.get_name(), e);
+            }
+        }
+    }
+
+    // Return the sinks to write the resource of a message to, or delete it from if there is none.
+    private List<IndexSink> targets(FedoraMessage m, FedoraResource resource) {
+        if (router == null) {
+            return sinks;
+        }
+
+        List<String> types = new ArrayList<>();
+
+        if (m.getResourceTypes() != null) {
+            types.addAll(Arrays.asList(m.getResourceTypes()));
+        }
+
+        if (resource != null) {
+            types.addAll(TypeRouter.get_document_types(resource.json));
+        } else if (types.isEmpty()) {
+            // Without types the index of a deleted document is unknown, so it is deleted from each
+            return sinks;
+        }
+
+        List<IndexSink> result = new ArrayList<>(unrouted);
+        result.add(routed.get(router.route(types)));
+
+        return result;
+    }
+
+    // Write the documents submitted so far to every index and stop.
+    @Override
+    public void close() {
+        sinks.forEach(IndexSink::close);
+    }
+}
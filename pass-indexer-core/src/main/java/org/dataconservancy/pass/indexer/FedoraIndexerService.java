@@ -1,15 +1,32 @@
 package org.dataconservancy.pass.indexer;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Setup a handler that reads Fedora events from a JMS queue and updates an
  * Elasticsearch index in response.
+ *
+ * If additional indexes are given, each resource is fetched once and written to every index by
+ * an {@link IndexSink} of its own, see {@link FanOutIndexer}. Type routes send resources of some
+ * types to indexes of their own instead of the main index, in the same way.
  */
 public class FedoraIndexerService implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(FedoraIndexerService.class);
@@ -22,6 +39,37 @@ public class FedoraIndexerService implements AutoCloseable {
     private String fedora_user;
     private String fedora_pass;
     private String elasticsearch_index_config;
+    private Path field_plan_cache;
+    private boolean fail_fast = true;
+    private long mapping_poll_seconds;
+    private int admin_port = -1;
+    private ScheduledExecutorService mapping_poller;
+    private AdminServer admin_server;
+    private List<String> additional_indexes = Collections.emptyList();
+    private List<String> type_routes = Collections.emptyList();
+    private Map<String, List<String>> enrich_links = Collections.emptyMap();
+    private int enrich_cache_size = 10000;
+    private long enrich_cache_millis = 300000;
+    private int partial_updates;
+    private boolean external_versioning;
+    private long dropped_summary_millis = 60000;
+    private boolean wait_for_refresh;
+    private long ready_max_lag_millis;
+    private List<ElasticSearchIndexer> indexers = Collections.emptyList();
+    private int sink_batch_size = 100;
+    private long sink_batch_delay_millis = 200;
+    private int sink_breaker_threshold = 5;
+    private long sink_breaker_cooldown_millis = 30000;
+    private Path sink_journal;
+    private FanOutIndexer fan_out;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final IndexLag lag = new IndexLag(metrics);
+
+    // Handles a Fedora message with one index or several
+    @FunctionalInterface
+    private interface MessageHandler {
+        void handle(FedoraMessage m) throws IOException;
+    }
 
     public void setJmsConnectionFactory(ConnectionFactory conf_fact) {
         this.jms_con_fact = conf_fact;
@@ -43,6 +91,144 @@ public class FedoraIndexerService implements AutoCloseable {
         this.elasticsearch_index_config = elasticsearch_index_config;
     }
 
+    /**
+     * Cache the field plan of the index in the given file, so that on the next start messages are
+     * handled while the index is checked in the background.
+     */
+    public void setFieldPlanCache(Path field_plan_cache) {
+        this.field_plan_cache = field_plan_cache;
+    }
+
+    /**
+     * Whether to check the index before handling messages even if a cached field plan exists.
+     * Defaults to true.
+     */
+    public void setFailFast(boolean fail_fast) {
+        this.fail_fast = fail_fast;
+    }
+
+    /**
+     * Check the mapping of the index for changes this often, reloading the field plan if it
+     * changed. Zero, the default, turns polling off.
+     */
+    public void setMappingPollSeconds(long mapping_poll_seconds) {
+        this.mapping_poll_seconds = mapping_poll_seconds;
+    }
+
+    /**
+     * Listen for admin requests on the given port. Negative, the default, turns the admin server off.
+     * POST /mapping/reload reloads the field plan and answers with the fields newly enabled, and
+     * GET /mapping with the version of the field plan and its last change.
+     * GET /metrics answers with the metrics, and GET /ready with the lag of the index.
+     */
+    public void setAdminPort(int admin_port) {
+        this.admin_port = admin_port;
+    }
+
+    /**
+     * Also write documents to the given indexes. Each is an index URL, optionally followed by | and
+     * the configuration to create the index with. Without one, the configuration of the main index
+     * is used.
+     */
+    public void setAdditionalIndexes(List<String> additional_indexes) {
+        this.additional_indexes = additional_indexes;
+    }
+
+    /**
+     * Write resources of the given RDF types to indexes of their own rather than the main index.
+     * Each route is a type, =, and an index URL optionally followed by | and the configuration to
+     * create the index with. Routes are tried in order and the first matching a type of the resource
+     * wins. Additional indexes still get every resource.
+     */
+    public void setTypeRoutes(List<String> type_routes) {
+        this.type_routes = type_routes;
+    }
+
+    /**
+     * Embed the given fields of referenced resources in documents, by link field. See {@link Enricher}.
+     */
+    public void setEnrichLinks(Map<String, List<String>> enrich_links) {
+        this.enrich_links = enrich_links;
+    }
+
+    /**
+     * Set the most referenced resources cached for enrichment, and the longest each is cached.
+     * Defaults to 10000 resources and 5 minutes.
+     */
+    public void setEnrichCache(int size, long millis) {
+        this.enrich_cache_size = size;
+        this.enrich_cache_millis = millis;
+    }
+
+    /**
+     * Update documents indexed recently with only the fields which changed, remembering the fields
+     * of up to the given number of documents. Zero, the default, turns this off. Only the main index
+     * is updated this way, and only without additional indexes or type routes. Cannot be combined
+     * with external versioning.
+     */
+    public void setPartialUpdates(int partial_updates) {
+        this.partial_updates = partial_updates;
+    }
+
+    /**
+     * Version documents by the last modified time of their Fedora resource, so that older versions
+     * never replace newer ones. Defaults to false. Cannot be combined with partial updates.
+     */
+    public void setExternalVersioning(boolean external_versioning) {
+        this.external_versioning = external_versioning;
+    }
+
+    /**
+     * Log a summary of the properties dropped from documents at most this often. Defaults to a minute.
+     */
+    public void setDroppedFieldSummaryMillis(long dropped_summary_millis) {
+        this.dropped_summary_millis = dropped_summary_millis;
+    }
+
+    /**
+     * Whether writes wait for a refresh of the index, so that the lag of documents is measured until
+     * they are searchable. Slows writes down. Defaults to false.
+     */
+    public void setWaitForRefresh(boolean wait_for_refresh) {
+        this.wait_for_refresh = wait_for_refresh;
+    }
+
+    /**
+     * Answer GET /ready on the admin server with 503 while the current lag is more than this, see
+     * {@link IndexLag}. Zero, the default, is ready whenever the JMS consumer is connected.
+     */
+    public void setReadyMaxLagMillis(long ready_max_lag_millis) {
+        this.ready_max_lag_millis = ready_max_lag_millis;
+    }
+
+    /**
+     * With additional indexes, set the most documents written to an index in one bulk request, and
+     * the longest a document waits for a batch to fill. Defaults to 100 documents and 200 ms.
+     */
+    public void setSinkBatch(int size, long delay_millis) {
+        this.sink_batch_size = size;
+        this.sink_batch_delay_millis = delay_millis;
+    }
+
+    /**
+     * With additional indexes, set how many failures in a row open the circuit breaker of an index,
+     * and how long it stays open. Defaults to 5 failures and 30 seconds.
+     */
+    public void setSinkBreaker(int threshold, long cooldown_millis) {
+        this.sink_breaker_threshold = threshold;
+        this.sink_breaker_cooldown_millis = cooldown_millis;
+    }
+
+    /**
+     * With additional indexes, keep the URIs of documents not yet written to the main index in the
+     * given file, and those of each other index in a file named after it with its position appended.
+     * Documents left in them, dropped or lost when the process died, are indexed again on the next
+     * start. Null, the default, keeps no journal.
+     */
+    public void setSinkJournal(Path sink_journal) {
+        this.sink_journal = sink_journal;
+    }
+
     public void setFedoraUser(String fedora_user) {
         this.fedora_user = fedora_user;
     }
@@ -77,7 +263,93 @@ public class FedoraIndexerService implements AutoCloseable {
         jms_client = new JmsClient(jms_con_fact);
 
         ElasticSearchIndexer es = new ElasticSearchIndexer(elasticsearch_index_url, elasticsearch_index_config,
-                                                           fedora_user, fedora_pass);
+                                                           fedora_user, fedora_pass,
+                                                           ElasticSearchIndexer.default_client(), field_plan_cache,
+                                                           fail_fast);
+        List<ElasticSearchIndexer> indexers = new ArrayList<>();
+        indexers.add(es);
+        this.indexers = indexers;
+
+        // Resources are fetched by the main indexer for every index, so only it enriches them
+        if (!enrich_links.isEmpty()) {
+            es.set_enricher(new Enricher(es, enrich_links, enrich_cache_size, enrich_cache_millis, metrics));
+        }
+
+        for (String index : additional_indexes) {
+            indexers.add(create_indexer(index, indexers.size()));
+        }
+
+        TypeRouter router = null;
+
+        if (!type_routes.isEmpty()) {
+            router = new TypeRouter(es.get_index_url());
+            Map<String, ElasticSearchIndexer> routed = new HashMap<>();
+            routed.put(es.get_index_url(), es);
+
+            for (String route : type_routes) {
+                String[] parts = route.split("=", 2);
+
+                if (parts.length != 2) {
+                    String msg = "Type route is not type=index: " + route;
+                    LOG.error(msg);
+                    throw new IOException(msg);
+                }
+
+                // Several types may share an index, which may be the main one
+                String url = parts[1].split("\\|", 2)[0];
+                url = url.endsWith("/") ? url : url + "/";
+                ElasticSearchIndexer indexer = routed.get(url);
+
+                if (indexer == null) {
+                    indexer = create_indexer(parts[1], indexers.size());
+                    indexers.add(indexer);
+                    routed.put(url, indexer);
+                }
+
+                router.add_route(parts[0], indexer.get_index_url());
+                LOG.info("Routing type " + parts[0] + " to index " + indexer.get_index_url());
+            }
+        }
+
+        es.set_partial_updates(partial_updates);
+        es.set_lag(lag);
+
+        for (ElasticSearchIndexer indexer : indexers) {
+            indexer.set_dropped_field_metrics(metrics, dropped_summary_millis);
+            indexer.set_external_versioning(external_versioning);
+            indexer.set_wait_for_refresh(wait_for_refresh);
+            metrics.gauge("pass_indexer_stale_writes", "Writes ignored because a newer version was indexed",
+                          indexer::get_stale_writes, "index", indexer.get_index_url());
+        }
+
+        MessageHandler handler = es::handle;
+
+        if (indexers.size() > 1) {
+            List<IndexSink> sinks = new ArrayList<>();
+
+            for (ElasticSearchIndexer indexer : indexers) {
+                IndexSink sink = new IndexSink(indexer, sink_batch_size, sink_batch_delay_millis, metrics);
+                sink.set_breaker(sink_breaker_threshold, sink_breaker_cooldown_millis);
+                sink.set_lag(lag);
+
+                if (sink_journal != null) {
+                    sink.set_journal(sinks.isEmpty() ? sink_journal
+                        : sink_journal.resolveSibling(sink_journal.getFileName() + "." + sinks.size()));
+                }
+
+                sinks.add(sink);
+            }
+
+            fan_out = new FanOutIndexer(sinks, router);
+            fan_out.replay();
+            handler = fan_out::handle;
+        }
+
+        String messages_help = "Fedora messages received, by outcome";
+        LongAdder handled = metrics.counter("pass_indexer_messages_total", messages_help, "outcome", "handled");
+        LongAdder ignored = metrics.counter("pass_indexer_messages_total", messages_help, "outcome", "ignored");
+        LongAdder failed = metrics.counter("pass_indexer_messages_total", messages_help, "outcome", "failed");
+        MessageHandler message_handler = handler;
 
         jms_client.listen(jms_queue, msg -> {
             try {
@@ -86,29 +358,153 @@ public class FedoraIndexerService implements AutoCloseable {
                 boolean should_handle = should_handle(fedora_msg);
 
                 if (should_handle) {
-                    es.handle(fedora_msg);
+                    lag.record_since(IndexLag.RECEIVE, fedora_msg.getEventTime());
+                    lag.handling(fedora_msg.getEventTime());
+
+                    try {
+                        message_handler.handle(fedora_msg);
+                    } finally {
+                        lag.handled(fedora_msg.getEventTime());
+                    }
+
+                    handled.increment();
                 } else {
                     LOG.debug("Ignore Fedora message without known RDF type: " + fedora_msg);
+                    ignored.increment();
                 }
             } catch (IOException | JMSException e) {
+                failed.increment();
                 throw new RuntimeException(e);
             }
         });
 
+        if (mapping_poll_seconds > 0) {
+            mapping_poller = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mapping-poll");
+                t.setDaemon(true);
+                return t;
+            });
+
+            mapping_poller.scheduleWithFixedDelay(() -> {
+                for (ElasticSearchIndexer indexer : indexers) {
+                    try {
+                        indexer.reload_field_plan();
+                    } catch (IOException | RuntimeException e) {
+                        LOG.warn("Could not check mapping of index " + indexer.get_index_url(), e);
+                    }
+                }
+            }, mapping_poll_seconds, mapping_poll_seconds, TimeUnit.SECONDS);
+        }
+
+        if (admin_port >= 0) {
+            admin_server = new AdminServer(admin_port);
+            // The version and fields enabled are given for the main index, and for each index by URL
+            admin_server.add("POST", "/mapping/reload", () -> {
+                JSONObject result = new JSONObject();
+                JSONObject by_index = new JSONObject();
+
+                for (ElasticSearchIndexer indexer : indexers) {
+                    Set<String> enabled = indexer.reload_field_plan();
+                    JSONObject reloaded = new JSONObject().put("version", indexer.get_field_plan().version())
+                                                          .put("enabled", new JSONArray(enabled));
+                    by_index.put(indexer.get_index_url(), reloaded);
+
+                    if (indexer == es) {
+                        reloaded.keySet().forEach(key -> result.put(key, reloaded.get(key)));
+                    }
+                }
+
+                return AdminServer.Reply.json(200, result.put("indexes", by_index));
+            });
+            admin_server.add("GET", "/mapping", () -> {
+                JSONObject result = new JSONObject();
+                JSONObject by_index = new JSONObject();
+
+                for (ElasticSearchIndexer indexer : indexers) {
+                    JSONObject mapping = new JSONObject().put("version", indexer.get_field_plan().version());
+                    ElasticSearchIndexer.FieldPlanChange change = indexer.get_last_field_plan_change();
+
+                    if (change != null) {
+                        mapping.put("last_change", new JSONObject().put("version", change.version)
+                                                                   .put("previous_version", change.previous_version)
+                                                                   .put("enabled", new JSONArray(change.enabled))
+                                                                   .put("disabled", new JSONArray(change.disabled))
+                                                                   .put("time", change.time));
+                    }
+
+                    by_index.put(indexer.get_index_url(), mapping);
+
+                    if (indexer == es) {
+                        mapping.keySet().forEach(key -> result.put(key, mapping.get(key)));
+                    }
+                }
+
+                return AdminServer.Reply.json(200, result.put("indexes", by_index));
+            });
+            admin_server.add("GET", "/metrics", () -> AdminServer.Reply.text(200, metrics.render()));
+            admin_server.add("GET", "/ready", () -> {
+                // Not ready while the consumer is disconnected, as lag then stops growing
+                boolean connected = jms_client.isConnected();
+                boolean ready = connected && (ready_max_lag_millis <= 0 || lag.get_current() <= ready_max_lag_millis);
+                JSONObject result = new JSONObject().put("ready", ready)
+                                                    .put("connected", connected)
+                                                    .put("lag_millis", lag.get_current())
+                                                    .put("max_lag_millis", lag.get_max());
+
+                return AdminServer.Reply.json(ready ? 200 : 503, result);
+            });
+            admin_server.start();
+        }
+
         LOG.info("Started listening on jms queue " + jms_queue);
         LOG.info("Elasticsearch index: " + elasticsearch_index_url);
     }
 
+    // Create the indexer of an index given as its URL, optionally followed by | and its configuration.
+    // The field plan is cached next to that of the main index, numbered by position.
+    private ElasticSearchIndexer create_indexer(String index, int position) throws IOException {
+        String[] parts = index.split("\\|", 2);
+        Path cache = field_plan_cache == null ? null
+            : field_plan_cache.resolveSibling(field_plan_cache.getFileName() + "." + position);
+
+        return new ElasticSearchIndexer(parts[0], parts.length > 1 ? parts[1] : elasticsearch_index_config,
+                                        fedora_user, fedora_pass, ElasticSearchIndexer.default_client(), cache,
+                                        fail_fast);
+    }
+
     @Override
     public void close() {
+        if (mapping_poller != null) {
+            mapping_poller.shutdownNow();
+        }
+
+        if (admin_server != null) {
+            admin_server.close();
+        }
+
         if (jms_client != null) {
             LOG.info("Shutting down JMS client");
             jms_client.close();
         }
+
+        if (fan_out != null) {
+            fan_out.close();
+        }
+
+        indexers.forEach(ElasticSearchIndexer::log_dropped_fields);
     }
 
     // Needed for testing
     protected JmsClient getJmsClient() {
         return jms_client;
     }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    // Needed for testing
+    protected AdminServer getAdminServer() {
+        return admin_server;
+    }
 }
@@ -25,6 +25,7 @@ public class FedoraMessage {
     private String res_uri;
     private String[] res_types;
     private FedoraAction action;
+    private long event_time = -1;
 
     public String getResourceURI() {
         return res_uri;
@@ -50,6 +51,17 @@ public class FedoraMessage {
         this.action = action;
     }
 
+    /**
+     * @return Time of the event in milliseconds since the epoch, or -1 if unknown
+     */
+    public long getEventTime() {
+        return event_time;
+    }
+
+    public void setEventTime(long event_time) {
+        this.event_time = event_time;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
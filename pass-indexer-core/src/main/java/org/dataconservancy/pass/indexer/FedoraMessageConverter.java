@@ -16,6 +16,8 @@
 
 package org.dataconservancy.pass.indexer;
 
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.stream.Stream;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -44,6 +46,9 @@ public class FedoraMessageConverter {
     }
 
     public static FedoraMessage convert(String text) {
+        IndexerEvents.Convert event = new IndexerEvents.Convert();
+        event.begin();
+
         JSONObject root = new JSONObject(text);
 
         String uri = root.getString("id");
@@ -75,10 +80,33 @@ public class FedoraMessageConverter {
         result.setResourceURI(uri);
         result.setResourceTypes(types);
         result.setAction(action);
+        result.setEventTime(parse_time(gen.optString("atTime", null)));
+
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.uri = uri;
+            event.action = String.valueOf(action);
+            event.size = IndexerEvents.utf8_length(text);
+            event.commit();
+        }
 
         return result;
     }
 
+    // Return an xsd:dateTime in milliseconds since the epoch, or -1 if missing or not understood.
+    private static long parse_time(String time) {
+        if (time == null) {
+            return -1;
+        }
+
+        try {
+            return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
     private static String[] to_string_array(JSONArray json) {
         String[] result = new String[json.length()];
 
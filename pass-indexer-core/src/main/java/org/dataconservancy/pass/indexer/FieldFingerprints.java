@@ -0,0 +1,75 @@
+package org.dataconservancy.pass.indexer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Fingerprints of the fields of the documents last indexed, so that a new version of a document can
+ * be compared with the last one field by field without keeping the documents themselves. Only the
+ * most recently indexed documents are remembered. Thread safe.
+ */
+class FieldFingerprints {
+    // Fields of a document last sent
+    static final class Sent {
+        final Map<String, Long> fields;
+
+        Sent(Map<String, Long> fields) {
+            this.fields = fields;
+        }
+    }
+
+    private final Map<String, Sent> docs;
+
+    /**
+     * @param max_documents - Most documents remembered
+     */
+    FieldFingerprints(int max_documents) {
+        this.docs = new LinkedHashMap<String, Sent>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Sent> eldest) {
+                return size() > max_documents;
+            }
+        };
+    }
+
+    // Return the fingerprint of each field of a document.
+    static Map<String, Long> fingerprint(JSONObject doc) {
+        Map<String, Long> result = new HashMap<>();
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+            for (String key : doc.keySet()) {
+                byte[] hash = md.digest(String.valueOf(doc.get(key)).getBytes(StandardCharsets.UTF_8));
+                result.put(key, ByteBuffer.wrap(hash).getLong());
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return result;
+    }
+
+    // Return the document last indexed for a Fedora URI, or null if not remembered.
+    synchronized Sent get(String uri) {
+        return docs.get(uri);
+    }
+
+    synchronized void put(String uri, Map<String, Long> fields) {
+        docs.put(uri, new Sent(fields));
+    }
+
+    // Forget a document, which must then be indexed in full.
+    synchronized void remove(String uri) {
+        docs.remove(uri);
+    }
+}
@@ -0,0 +1,160 @@
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The fields of a document which the mapping of an index supports, and which of them have a
+ * _suggest companion field of type completion. This is all of the mapping needed to normalize
+ * documents, so a plan can be saved to a file and used on the next start before the index is
+ * reachable.
+ *
+ * The version of a plan is a digest of its fields, so plans from the same mapping have the same
+ * version whenever they were made.
+ */
+public final class FieldPlan {
+    private static final Logger LOG = LoggerFactory.getLogger(FieldPlan.class);
+
+    static final String SUGGEST_SUFFIX = "_suggest";
+
+    // Changed whenever the format of saved plans changes, so older files are ignored
+    private static final int FORMAT = 1;
+
+    private final Set<String> supported_fields;
+    private final Set<String> suggest_fields;
+    private final String version;
+
+    private FieldPlan(Set<String> supported_fields) {
+        this.supported_fields = Collections.unmodifiableSet(new TreeSet<>(supported_fields));
+
+        Set<String> suggest = supported_fields.stream()
+            .filter(f -> f.endsWith(SUGGEST_SUFFIX))
+            .map(f -> f.substring(0, f.length() - SUGGEST_SUFFIX.length()))
+            .collect(Collectors.toCollection(TreeSet::new));
+
+        this.suggest_fields = Collections.unmodifiableSet(suggest);
+        this.version = digest(this.supported_fields);
+    }
+
+    /**
+     * @param config index configuration, either as given to create the index or as returned by it
+     * @return plan for the mapping in the configuration
+     */
+    public static FieldPlan from_index_configuration(JSONObject config) {
+        // The mappings key is either toplevel or inside an object representing the index.
+        if (!config.has("mappings")) {
+            Set<String> keys = config.keySet();
+
+            if (keys.size() == 1) {
+                config = config.getJSONObject(keys.iterator().next());
+            }
+        }
+
+        JSONObject props = config.getJSONObject("mappings").getJSONObject("_doc").getJSONObject("properties");
+
+        return new FieldPlan(props.keySet());
+    }
+
+    private static String digest(Set<String> sorted_fields) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] hash = md.digest(String.join("\n", sorted_fields).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Fields supported by the mapping.
+    public Set<String> supported_fields() {
+        return supported_fields;
+    }
+
+    // Fields which have a _suggest companion field of type completion.
+    public Set<String> suggest_fields() {
+        return suggest_fields;
+    }
+
+    public String version() {
+        return version;
+    }
+
+    /**
+     * Read a plan saved for the given index.
+     *
+     * @param file
+     * @param es_index_url
+     * @return plan or null if the file does not exist, cannot be read, or was saved for another index
+     */
+    public static FieldPlan read(Path file, String es_index_url) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+
+        try {
+            JSONObject o = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+            if (o.getInt("format") != FORMAT || !o.getString("index").equals(es_index_url)) {
+                LOG.info("Ignoring field plan saved for another index or version: " + file);
+                return null;
+            }
+
+            Set<String> fields = new TreeSet<>();
+            o.getJSONArray("fields").forEach(f -> fields.add(f.toString()));
+
+            FieldPlan plan = new FieldPlan(fields);
+
+            if (!plan.version.equals(o.getString("version"))) {
+                LOG.warn("Ignoring field plan with a wrong version: " + file);
+                return null;
+            }
+
+            return plan;
+        } catch (IOException | JSONException e) {
+            LOG.warn("Could not read field plan: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the plan for the given index. The file is replaced atomically.
+     *
+     * @param file
+     * @param es_index_url
+     * @throws IOException
+     */
+    public void write(Path file, String es_index_url) throws IOException {
+        JSONObject o = new JSONObject().put("format", FORMAT).put("version", version).put("index", es_index_url)
+                                       .put("fields", new JSONArray(supported_fields));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        Files.write(tmp, o.toString(2).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return "FieldPlan " + version + " " + supported_fields;
+    }
+}
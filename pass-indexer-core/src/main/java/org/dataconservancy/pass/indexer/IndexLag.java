@@ -0,0 +1,120 @@
+package org.dataconservancy.pass.indexer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How far the index trails Fedora. The time from a Fedora event until its document is written is
+ * recorded end to end, and for each stage on the way: from the event until the indexer receives the
+ * message, fetching the resource from Fedora, and writing the document until Elasticsearch
+ * acknowledges it. If writes wait for a refresh, the document is searchable once acknowledged.
+ *
+ * The current lag is the time since the oldest event being handled whose document is not written
+ * yet. Without one, it is the lag of the last document written for a second after it was written,
+ * so that it does not drop between messages, and then none. A document of an old event therefore
+ * only counts while it is handled.
+ *
+ * Lag is measured against the time of the event given by Fedora, so the clocks of Fedora and the
+ * indexer must agree. Lag below zero from a clock ahead of the indexer counts as none. Thread safe.
+ */
+public class IndexLag {
+    public static final String RECEIVE = "receive";
+    public static final String FETCH = "fetch";
+    public static final String WRITE = "write";
+    public static final String TOTAL = "total";
+
+    // Upper bounds of the lag histogram buckets, from 10 ms up to an hour
+    private static final long[] BOUNDS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000,
+        900000, 3600000};
+
+    // Lag of the last document written counts as current this long after it was written
+    private static final long LAST_WRITE_MILLIS = 1000;
+
+    private final Map<String, MetricsRegistry.Histogram> stages = new HashMap<>();
+    private final AtomicLong last_millis = new AtomicLong();
+    private final AtomicLong max_millis = new AtomicLong();
+    private volatile long last_written;
+
+    // Times of the events being handled, with how many of each, guarded by this
+    private final NavigableMap<Long, Integer> handling = new TreeMap<>();
+
+    /**
+     * @param metrics - Registry to add the lag histograms and gauges to
+     */
+    public IndexLag(MetricsRegistry metrics) {
+        for (String stage : new String[] {RECEIVE, FETCH, WRITE, TOTAL}) {
+            stages.put(stage, metrics.histogram("pass_indexer_lag_milliseconds", "Time taken by each stage of "
+                                                + "indexing a Fedora event, and in total", BOUNDS, "stage", stage));
+        }
+
+        String help = "Time since the oldest Fedora event whose document is not written yet, and the most time "
+                      + "from an event until its document was written so far";
+        metrics.gauge("pass_indexer_index_lag_milliseconds", help, this::get_current, "stat", "current");
+        metrics.gauge("pass_indexer_index_lag_milliseconds", help, max_millis::get, "stat", "max");
+    }
+
+    // Record the time taken by a stage, one of RECEIVE, FETCH or WRITE.
+    public void record(String stage, long millis) {
+        stages.get(stage).observe(Math.max(0, millis));
+    }
+
+    // Record the time taken by a stage which started at the given time in milliseconds since the epoch.
+    // Unknown times, below zero, are skipped.
+    public void record_since(String stage, long start) {
+        if (start >= 0) {
+            record(stage, System.currentTimeMillis() - start);
+        }
+    }
+
+    // Record that an event at the given time, in milliseconds since the epoch, is being handled until a
+    // matching call of handled, however it ends. Unknown times, below zero, are skipped.
+    public synchronized void handling(long event_time) {
+        if (event_time >= 0) {
+            handling.merge(event_time, 1, Integer::sum);
+        }
+    }
+
+    // Record that an event given to handling is no longer being handled.
+    public synchronized void handled(long event_time) {
+        if (event_time >= 0) {
+            handling.computeIfPresent(event_time, (time, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    // Record that the document of an event at the given time, in milliseconds since the epoch, was written.
+    // Unknown times, below zero, are skipped.
+    public void written(long event_time) {
+        if (event_time < 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long lag = Math.max(0, now - event_time);
+
+        stages.get(TOTAL).observe(lag);
+        last_millis.set(lag);
+        last_written = now;
+        max_millis.accumulateAndGet(lag, Math::max);
+    }
+
+    // Return the current lag in milliseconds, see above.
+    public long get_current() {
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (!handling.isEmpty()) {
+                return Math.max(0, now - handling.firstKey());
+            }
+        }
+
+        return now - last_written < LAST_WRITE_MILLIS ? last_millis.get() : 0;
+    }
+
+    // Return the most lag of any document written so far, in milliseconds.
+    public long get_max() {
+        return max_millis.get();
+    }
+}
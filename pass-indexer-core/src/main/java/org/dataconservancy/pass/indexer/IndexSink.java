@@ -0,0 +1,381 @@
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.dataconservancy.pass.indexer.ElasticSearchIndexer.FedoraResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes documents to one index on its own thread, so that a resource fetched from Fedora once can
+ * be indexed in several indexes. Each document is normalized with the field plan of the index.
+ * Documents are sent with bulk requests once a batch is full or the oldest document in it has
+ * waited long enough. If the queue of documents is full, submitting waits for room.
+ *
+ * A batch which fails is retried with backoff. After a number of failures in a row the circuit
+ * breaker opens and documents for the index are dropped, rather than holding up the other
+ * indexes, until the breaker has been open long enough to try again. Dropped documents are
+ * counted and logged with their URIs.
+ *
+ * With a journal, the URIs of documents not written are also kept in a file, so that they can be
+ * indexed again on the next start, including those still queued when the process died. See
+ * {@link SinkJournal}.
+ */
+public class IndexSink implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(IndexSink.class);
+
+    private static final int QUEUE_SIZE = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    // Update of the document of a resource, or deletion if there is no resource
+    private static class Op {
+        final String uri;
+        final FedoraResource resource;
+        final long event_time;
+        final long submitted = System.nanoTime();
+
+        Op(String uri, FedoraResource resource, long event_time) {
+            this.uri = uri;
+            this.resource = resource;
+            this.event_time = event_time;
+        }
+    }
+
+    private final ElasticSearchIndexer indexer;
+    private final int batch_size;
+    private final long batch_delay_nanos;
+    private final BlockingQueue<Op> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+
+    private int breaker_threshold = 5;
+    private long breaker_cooldown_millis = 30000;
+    private int failures_in_row;
+    private volatile long breaker_open_until;
+    private volatile boolean closed;
+    private volatile IndexLag lag;
+    private volatile SinkJournal journal;
+
+    private final LongAdder indexed;
+    private final LongAdder failed;
+    private final LongAdder dropped;
+    private final AtomicLong last_lag_millis = new AtomicLong();
+    private final AtomicLong max_lag_millis = new AtomicLong();
+
+    /**
+     * @param indexer - Index to write to
+     * @param batch_size - Most documents sent in one bulk request
+     * @param batch_delay_millis - Longest a document waits for its batch to fill
+     * @param metrics - Registry to add the metrics of the sink to
+     */
+    public IndexSink(ElasticSearchIndexer indexer, int batch_size, long batch_delay_millis, MetricsRegistry metrics) {
+        this.indexer = indexer;
+        this.batch_size = batch_size;
+        this.batch_delay_nanos = TimeUnit.MILLISECONDS.toNanos(batch_delay_millis);
+
+        String name = get_name();
+        String help = "Documents written to an index sink, by outcome";
+        indexed = metrics.counter("pass_indexer_sink_documents_total", help, "sink", name, "outcome", "indexed");
+        failed = metrics.counter("pass_indexer_sink_documents_total", help, "sink", name, "outcome", "failed");
+        dropped = metrics.counter("pass_indexer_sink_documents_total", help, "sink", name, "outcome", "dropped");
+        metrics.gauge("pass_indexer_sink_queue_depth", "Documents waiting to be written to an index sink",
+                      queue::size, "sink", name);
+
+        String lag_help = "Time from submitting a document to an index sink until it was written, for the last "
+                          + "batch and the most so far";
+        metrics.gauge("pass_indexer_sink_lag_milliseconds", lag_help, last_lag_millis::get, "sink", name,
+                      "stat", "last");
+        metrics.gauge("pass_indexer_sink_lag_milliseconds", lag_help, max_lag_millis::get, "sink", name,
+                      "stat", "max");
+        metrics.gauge("pass_indexer_sink_breaker_open", "Whether the circuit breaker of an index sink is open",
+                      () -> is_breaker_open() ? 1 : 0, "sink", name);
+
+        this.thread = new Thread(this::run, "sink-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Set how many failed attempts in a row open the circuit breaker, and how long it stays open.
+     * Defaults to 5 attempts and 30 seconds.
+     */
+    public void set_breaker(int threshold, long cooldown_millis) {
+        this.breaker_threshold = threshold;
+        this.breaker_cooldown_millis = cooldown_millis;
+    }
+
+    // Record the lag of documents written, or not if null.
+    public void set_lag(IndexLag lag) {
+        this.lag = lag;
+    }
+
+    /**
+     * Keep the URIs of documents not written in the given file, reading back those not written
+     * before the last stop. Must be set before documents are submitted.
+     */
+    public void set_journal(Path file) throws IOException {
+        this.journal = new SinkJournal(file);
+    }
+
+    // Return the URIs of documents journaled but not written before the last stop, see FanOutIndexer.replay.
+    public List<String> get_unwritten() {
+        SinkJournal journal = this.journal;
+        return journal == null ? Collections.emptyList() : journal.get_replay();
+    }
+
+    public String get_name() {
+        return indexer.get_index_url();
+    }
+
+    public ElasticSearchIndexer get_indexer() {
+        return indexer;
+    }
+
+    public boolean is_breaker_open() {
+        return System.currentTimeMillis() < breaker_open_until;
+    }
+
+    // Queue the resource to be indexed, or its document deleted if the resource is null.
+    public void submit(String uri, FedoraResource resource) {
+        submit(uri, resource, -1);
+    }
+
+    /**
+     * Queue the resource to be indexed, or its document deleted if the resource is null.
+     *
+     * @param event_time - Time of the Fedora event in milliseconds since the epoch, or -1 if unknown
+     */
+    public void submit(String uri, FedoraResource resource, long event_time) {
+        SinkJournal journal = this.journal;
+
+        if (journal != null) {
+            try {
+                journal.submitted(uri);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not journal document for " + uri + " in " + get_name(), e);
+            }
+        }
+
+        enqueue(new Op(uri, resource, event_time));
+    }
+
+    // Queue a document journaled before the last stop to be indexed again, see FanOutIndexer.replay.
+    void resubmit(String uri, FedoraResource resource) {
+        enqueue(new Op(uri, resource, -1));
+    }
+
+    private void enqueue(Op op) {
+        if (is_breaker_open()) {
+            dropped.increment();
+            LOG.warn("Dropped document for " + op.uri + ", circuit breaker is open for " + get_name());
+            return;
+        }
+
+        // Before queueing, so that the document cannot be written first
+        IndexLag lag = this.lag;
+
+        if (lag != null) {
+            lag.handling(op.event_time);
+        }
+
+        try {
+            queue.put(op);
+        } catch (InterruptedException e) {
+            if (lag != null) {
+                lag.handled(op.event_time);
+            }
+
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting to submit document to " + get_name(), e);
+        }
+    }
+
+    private void run() {
+        List<Op> batch = new ArrayList<>(batch_size);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Op first = queue.poll(1, TimeUnit.SECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+
+                long deadline = first.submitted + batch_delay_nanos;
+
+                while (batch.size() < batch_size) {
+                    Op next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+
+            write(batch);
+            handled(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Op> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (is_breaker_open()) {
+            drop(batch);
+            return;
+        }
+
+        // Deletions are sent first, so a later update of the same resource in the batch wins
+        Map<String, String> docs = new LinkedHashMap<>();
+        Set<String> deletes = new LinkedHashSet<>();
+
+        try {
+            for (Op op : batch) {
+                docs.remove(op.uri);
+
+                if (op.resource == null) {
+                    deletes.add(ElasticSearchIndexer.get_document_id(op.uri));
+                } else {
+                    docs.put(op.uri, indexer.normalize(op.resource));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Could not prepare batch of " + batch.size() + " documents for " + get_name() + ": "
+                      + uris(batch), e);
+            failed.add(batch.size());
+            return;
+        }
+
+        for (long backoff = 1000; ; backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS)) {
+            try {
+                indexer.delete_documents(deletes);
+                indexer.index_documents(docs);
+
+                failures_in_row = 0;
+                indexed.add(batch.size());
+
+                long now = System.nanoTime();
+                long lag = TimeUnit.NANOSECONDS.toMillis(now - batch.get(0).submitted);
+                last_lag_millis.set(lag);
+                max_lag_millis.accumulateAndGet(lag, Math::max);
+                record_lag(batch, now);
+                record_written(batch);
+                return;
+            } catch (IOException | RuntimeException e) {
+                failures_in_row++;
+
+                if (failures_in_row >= breaker_threshold) {
+                    breaker_open_until = System.currentTimeMillis() + breaker_cooldown_millis;
+                    LOG.error("Opened circuit breaker of " + get_name() + " for " + breaker_cooldown_millis
+                              + " ms after " + failures_in_row + " failures in a row", e);
+                    drop(batch);
+                    return;
+                }
+
+                LOG.warn("Failed to write batch of " + batch.size() + " documents to " + get_name()
+                         + ", retrying in " + backoff + " ms", e);
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                closed = true;
+                failed.add(batch.size());
+                LOG.warn("Interrupted writing batch of " + batch.size() + " documents to " + get_name() + ": "
+                         + uris(batch));
+                return;
+            }
+        }
+    }
+
+    // Record the lag of the documents of a batch written at the given time.
+    private void record_lag(List<Op> batch, long now) {
+        IndexLag lag = this.lag;
+
+        if (lag == null) {
+            return;
+        }
+
+        for (Op op : batch) {
+            lag.record(IndexLag.WRITE, TimeUnit.NANOSECONDS.toMillis(now - op.submitted));
+            lag.written(op.event_time);
+        }
+    }
+
+    // Record that the documents of a batch are no longer being handled, whether written or not.
+    private void handled(List<Op> batch) {
+        IndexLag lag = this.lag;
+
+        if (lag != null) {
+            batch.forEach(op -> lag.handled(op.event_time));
+        }
+    }
+
+    // Remove the documents of a batch written from the journal. If that fails, they are only indexed again.
+    private void record_written(List<Op> batch) {
+        SinkJournal journal = this.journal;
+
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.written(batch.stream().map(op -> op.uri).collect(Collectors.toList()));
+        } catch (IOException e) {
+            LOG.warn("Could not journal documents written to " + get_name(), e);
+        }
+    }
+
+    private void drop(List<Op> batch) {
+        dropped.add(batch.size());
+        LOG.warn("Dropped " + batch.size() + " documents for " + get_name() + ": " + uris(batch));
+    }
+
+    private static String uris(List<Op> batch) {
+        return batch.stream().map(op -> op.uri).collect(Collectors.joining(" "));
+    }
+
+    // Write the documents submitted so far and stop.
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        SinkJournal journal = this.journal;
+
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close journal of " + get_name(), e);
+            }
+        }
+    }
+}
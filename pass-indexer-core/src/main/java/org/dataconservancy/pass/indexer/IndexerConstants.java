@@ -11,5 +11,11 @@ public interface IndexerConstants {
         "return=representation; omit=\"http://fedora.info/definitions/v4/repository#ServerManaged\"";
     String FEDORA_PREFER_LENIENT_HEADER = "handling=lenient; received=\"minimal\"";
 
+    // Document field holding the last modified time in milliseconds of the Fedora resource indexed.
+    // It is mapped, but not searchable, in indexes created by the indexer, and only written to indexes
+    // whose mapping has it.
+    String FEDORA_LAST_MODIFIED_FIELD = "fedora_last_modified";
+
     MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    MediaType NDJSON = MediaType.parse("application/x-ndjson; charset=utf-8");
 }
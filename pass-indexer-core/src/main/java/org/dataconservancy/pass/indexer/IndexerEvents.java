@@ -0,0 +1,144 @@
+package org.dataconservancy.pass.indexer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for each stage of indexing a Fedora message, so that a recording can
+ * tie garbage collection, lock contention and socket waits to the resources which were slow. Each
+ * event is timed from begin to commit. Events are only committed while a recording has them enabled,
+ * which costs next to nothing otherwise. See pass-indexer.jfc for a configuration enabling them.
+ *
+ * Fields which are costly to fill in are only set if {@link Event#shouldCommit()}. Payload sizes
+ * are in bytes of UTF-8.
+ */
+final class IndexerEvents {
+    private static final String CATEGORY = "PASS Indexer";
+
+    private IndexerEvents() {
+    }
+
+    // Return the length of a string encoded as UTF-8 in bytes, without encoding it.
+    static long utf8_length(String s) {
+        long bytes = 0;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                       && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+
+        return bytes;
+    }
+
+    @Name("org.dataconservancy.pass.indexer.Receive")
+    @Label("Message Receipt")
+    @Description("Handling of a message received from JMS, from receipt until the listener returns")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Receive extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Message Id")
+        String id;
+
+        @Label("Payload Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("org.dataconservancy.pass.indexer.Convert")
+    @Label("Message Conversion")
+    @Description("Parsing of a Fedora message")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Convert extends Event {
+        @Label("URI")
+        String uri;
+
+        @Label("Action")
+        String action;
+
+        @Label("Payload Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("org.dataconservancy.pass.indexer.Fetch")
+    @Label("Fedora Fetch")
+    @Description("Fetching of a resource from Fedora")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Fetch extends Event {
+        @Label("URI")
+        String uri;
+
+        @Label("HTTP Status")
+        int status;
+
+        @Label("Payload Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("org.dataconservancy.pass.indexer.Normalize")
+    @Label("Normalization")
+    @Description("Normalization of a Fedora resource into the fields of a document")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Normalize extends Event {
+        @Label("URI")
+        String uri;
+
+        @Label("Payload Size")
+        @DataAmount
+        long size;
+
+        @Label("Properties Dropped")
+        int dropped;
+    }
+
+    @Name("org.dataconservancy.pass.indexer.Write")
+    @Label("Elasticsearch Write")
+    @Description("Request writing to an Elasticsearch index, until it is acknowledged")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Write extends Event {
+        @Label("Index")
+        String index;
+
+        @Label("URI")
+        @Description("Fedora URI of the document, unset for bulk requests")
+        String uri;
+
+        @Label("Action")
+        @Description("One of index, update, delete or bulk")
+        String action;
+
+        @Label("Documents")
+        int documents;
+
+        @Label("HTTP Status")
+        int status;
+
+        @Label("Payload Size")
+        @DataAmount
+        long size;
+    }
+}
@@ -29,6 +29,7 @@ import javax.jms.Message;
 import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -91,7 +92,7 @@ public class JmsClient implements AutoCloseable {
         this.addSessionListener(s -> {
             try {
                 final Destination dest = s.createQueue(queue);
-                s.createConsumer(dest).setMessageListener(listener);
+                s.createConsumer(dest).setMessageListener(m -> handleMessage(queue, m, listener));
                 LOG.info("Listening on " + dest);
             } catch (final JMSException e) {
                 throw new JmsRuntimeException(e);
@@ -99,6 +100,39 @@ public class JmsClient implements AutoCloseable {
         });
     }
 
+    // Hand a message to a listener, recording its handling as a flight recorder event.
+    private static void handleMessage(String queue, Message message, MessageListener listener) {
+        IndexerEvents.Receive event = new IndexerEvents.Receive();
+        event.begin();
+
+        try {
+            listener.onMessage(message);
+        } finally {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.queue = queue;
+
+                try {
+                    event.id = message.getJMSMessageID();
+
+                    if (message instanceof TextMessage) {
+                        String text = ((TextMessage) message).getText();
+                        event.size = text == null ? 0 : IndexerEvents.utf8_length(text);
+                    }
+                } catch (final JMSException e) {
+                    LOG.debug("Could not describe message for event", e);
+                }
+
+                event.commit();
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
     public Supplier<Session> getSessionSupplier() {
         return () -> {
             while (!connected) {
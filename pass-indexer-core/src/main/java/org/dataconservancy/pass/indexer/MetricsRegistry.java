@@ -0,0 +1,181 @@
+package org.dataconservancy.pass.indexer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and histograms of a running indexer, rendered in the Prometheus text format. A
+ * metric is identified by its name and labels, given as alternating label names and values.
+ * Registering the same counter or histogram twice returns the same one. Thread safe.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Counts of observed values at or below each of a number of bounds, with their sum.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(long[] bounds) {
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length + 1];
+
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long value) {
+            int i = 0;
+
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+
+            buckets[i].increment();
+            sum.add(value);
+        }
+
+        // Return the number of values observed.
+        public long count() {
+            long result = 0;
+
+            for (LongAdder bucket : buckets) {
+                result += bucket.sum();
+            }
+
+            return result;
+        }
+    }
+
+    // Metrics of the same name, which share their help text and type
+    private static class Family {
+        final String help;
+        final String type;
+        final Map<String, LongSupplier> series = new LinkedHashMap<>();
+        final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new TreeMap<>();
+    private final Map<String, LongAdder> counters = new HashMap<>();
+    private final Map<String, Histogram> histograms = new HashMap<>();
+
+    // Return the counter with the given name and labels, registering it if need be.
+    public synchronized LongAdder counter(String name, String help, String... labels) {
+        String labelled = name + label_string(labels);
+
+        return counters.computeIfAbsent(labelled, k -> {
+            LongAdder counter = new LongAdder();
+            family(name, help, "counter").series.put(label_string(labels), counter::sum);
+            return counter;
+        });
+    }
+
+    // Register a gauge with the given name and labels, replacing any registered before.
+    public synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(label_string(labels), value);
+    }
+
+    /**
+     * Return the histogram with the given name and labels, registering it if need be.
+     *
+     * @param bounds - Upper bounds of the buckets in increasing order, without the last, which is unbounded.
+     *        Ignored if the histogram is registered already.
+     */
+    public synchronized Histogram histogram(String name, String help, long[] bounds, String... labels) {
+        String labelled = name + label_string(labels);
+
+        return histograms.computeIfAbsent(labelled, k -> {
+            Histogram histogram = new Histogram(bounds);
+            family(name, help, "histogram").histograms.put(label_string(labels), histogram);
+            return histogram;
+        });
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+
+        return family;
+    }
+
+    private static String label_string(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+
+        if (labels.length == 0) {
+            return "";
+        }
+
+        StringBuilder result = new StringBuilder("{");
+
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+
+            result.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+                .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+
+        return result.append('}').toString();
+    }
+
+    // Return a label string with one more label.
+    private static String add_label(String labels, String name, String value) {
+        String label = label_string(name, value);
+
+        if (labels.isEmpty()) {
+            return label;
+        }
+
+        return labels.substring(0, labels.length() - 1) + ',' + label.substring(1);
+    }
+
+    // Return every metric in the Prometheus text format.
+    public synchronized String render() {
+        StringBuilder result = new StringBuilder();
+
+        families.forEach((name, family) -> {
+            result.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            result.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+            family.series.forEach((labels, value) -> {
+                result.append(name).append(labels).append(' ').append(value.getAsLong()).append('\n');
+            });
+
+            family.histograms.forEach((labels, histogram) -> {
+                long count = 0;
+
+                for (int i = 0; i < histogram.buckets.length; i++) {
+                    count += histogram.buckets[i].sum();
+                    String le = i < histogram.bounds.length ? String.valueOf(histogram.bounds[i]) : "+Inf";
+
+                    result.append(name).append("_bucket").append(add_label(labels, "le", le)).append(' ')
+                          .append(count).append('\n');
+                }
+
+                result.append(name).append("_sum").append(labels).append(' ').append(histogram.sum.sum())
+                      .append('\n');
+                result.append(name).append("_count").append(labels).append(' ').append(count).append('\n');
+            });
+        });
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,114 @@
+package org.dataconservancy.pass.indexer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the URIs of documents submitted to an index sink which it has not written, in a file. A
+ * message is acknowledged once its document is queued, so this is the only record of documents
+ * lost with the queue when the process dies, or dropped or failed by the sink.
+ *
+ * Each URI submitted is appended as a line starting with +, before submitting returns, and each
+ * written as a line starting with -. On opening, the URIs submitted and not written are read back
+ * to be indexed again, and the file is rewritten with only those. Thread safe.
+ */
+class SinkJournal implements AutoCloseable {
+    // Lines appended before the file is rewritten with only the URIs not written
+    private static final int COMPACT_LINES = 100000;
+
+    private final Path file;
+
+    // Times each URI was submitted and not written since
+    private final Map<String, Integer> unwritten = new LinkedHashMap<>();
+    private final List<String> replay;
+    private Writer writer;
+    private int lines;
+
+    SinkJournal(Path file) throws IOException {
+        this.file = file;
+
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.startsWith("+")) {
+                    unwritten.merge(line.substring(1), 1, Integer::sum);
+                } else if (line.startsWith("-")) {
+                    remove(line.substring(1));
+                }
+            }
+        }
+
+        // Each is indexed again once, however often it was submitted
+        unwritten.replaceAll((uri, count) -> 1);
+        replay = Collections.unmodifiableList(new ArrayList<>(unwritten.keySet()));
+
+        compact();
+    }
+
+    // Return the URIs which were not written when the journal was last closed.
+    List<String> get_replay() {
+        return replay;
+    }
+
+    synchronized void submitted(String uri) throws IOException {
+        unwritten.merge(uri, 1, Integer::sum);
+        writer.write("+" + uri + "\n");
+        writer.flush();
+        lines++;
+    }
+
+    synchronized void written(Collection<String> uris) throws IOException {
+        for (String uri : uris) {
+            remove(uri);
+            writer.write("-" + uri + "\n");
+            lines++;
+        }
+
+        writer.flush();
+
+        if (lines > COMPACT_LINES && lines > 2 * unwritten.size()) {
+            compact();
+        }
+    }
+
+    private void remove(String uri) {
+        unwritten.computeIfPresent(uri, (u, count) -> count > 1 ? count - 1 : null);
+    }
+
+    // Replace the file with one holding only the URIs not written.
+    private void compact() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        lines = 0;
+
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Integer> entry : unwritten.entrySet()) {
+                for (int i = 0; i < entry.getValue(); i++) {
+                    out.write("+" + entry.getKey() + "\n");
+                    lines++;
+                }
+            }
+        }
+
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
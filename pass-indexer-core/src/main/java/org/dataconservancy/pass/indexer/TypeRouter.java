@@ -0,0 +1,93 @@
+package org.dataconservancy.pass.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Chooses the index of a resource from its RDF types. Rules are tried in the order they were
+ * added and the first with a type of the resource wins. Resources matching no rule go to the
+ * default index.
+ *
+ * Types come from Fedora messages as full URIs and from compact JSON-LD as terms of its context,
+ * so a type without a scheme, such as Submission, matches a rule for a URI ending in #Submission
+ * or /Submission.
+ */
+public class TypeRouter {
+    private final String default_index;
+    private final Map<String, String> routes = new LinkedHashMap<>();
+
+    public TypeRouter(String default_index) {
+        this.default_index = default_index;
+    }
+
+    // Send resources of the given RDF type to the given index.
+    public void add_route(String type, String index_url) {
+        routes.put(type, index_url);
+    }
+
+    public String get_default_index() {
+        return default_index;
+    }
+
+    // Return every index resources may be routed to, the default first.
+    public Set<String> get_indexes() {
+        Set<String> result = new LinkedHashSet<>();
+        result.add(default_index);
+        result.addAll(routes.values());
+        return Collections.unmodifiableSet(result);
+    }
+
+    // Return the index for a resource with the given types.
+    public String route(Collection<String> types) {
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            for (String type : types) {
+                if (matches(route.getKey(), type)) {
+                    return route.getValue();
+                }
+            }
+        }
+
+        return default_index;
+    }
+
+    private static boolean matches(String rule, String type) {
+        if (rule.equals(type)) {
+            return true;
+        }
+
+        if (type.contains(":")) {
+            return false;
+        }
+
+        return rule.endsWith("#" + type) || rule.endsWith("/" + type);
+    }
+
+    // Return the @type of a JSON-LD document, which may be a single type or several.
+    public static List<String> get_document_types(String json) {
+        List<String> result = new ArrayList<>();
+
+        try {
+            Object type = new JSONObject(json).opt("@type");
+
+            if (type instanceof JSONArray) {
+                ((JSONArray) type).forEach(t -> result.add(t.toString()));
+            } else if (type != null) {
+                result.add(type.toString());
+            }
+        } catch (JSONException e) {
+            // Not a document, so no types
+        }
+
+        return result;
+    }
+}
@@ -3,19 +3,33 @@ package org.dataconservancy.pass.indexer;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import okhttp3.HttpUrl;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import org.dataconservancy.pass.indexer.ElasticSearchIndexer.FedoraResource;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
@@ -226,4 +240,500 @@ public class ElasticSearchIndexerTest implements IndexerConstants {
 
         assertTrue(delete.getRequestUrl().toString().startsWith(es_index_url.toString()));
     }
+
+    @Test
+    public void testIndexDocuments() throws Exception {
+        String uri1 = server.url("/fcrepo/cow/moo").toString();
+        String uri2 = server.url("/fcrepo/cow/oink").toString();
+
+        Map<String, String> docs = new LinkedHashMap<>();
+        docs.put(uri1, new JSONObject().put("@id", uri1).put("name", "moo").toString());
+        docs.put(uri2, new JSONObject().put("@id", uri2).put("name", "oink").toString());
+
+        // POST to Elasticsearch bulk endpoint
+        server.enqueue(new MockResponse().setBody("{\"errors\": false, \"items\": []}"));
+
+        indexer.index_documents(docs);
+
+        RecordedRequest bulk = server.takeRequest();
+
+        assertEquals("POST", bulk.getMethod());
+        assertEquals(es_index_url.toString() + "_doc/_bulk", bulk.getRequestUrl().toString());
+        assertEquals("application/x-ndjson; charset=utf-8", bulk.getHeader("Content-Type"));
+
+        String[] lines = bulk.getBody().readUtf8().split("\n");
+
+        assertEquals(4, lines.length);
+        assertTrue(new JSONObject(lines[0]).getJSONObject("index").has("_id"));
+        assertEquals("moo", new JSONObject(lines[1]).get("name"));
+        assertEquals("oink", new JSONObject(lines[3]).get("name"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testIndexDocumentsFailure() throws Exception {
+        String uri = server.url("/fcrepo/cow/moo").toString();
+
+        JSONObject item = new JSONObject().put("index", new JSONObject().put("_id", "moo").put("status", 400)
+                                                                        .put("error", "bad"));
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("errors", true)
+                                                                  .put("items", new JSONArray().put(item))
+                                                                  .toString()));
+
+        Map<String, String> docs = new LinkedHashMap<>();
+        docs.put(uri, new JSONObject().put("@id", uri).toString());
+
+        indexer.index_documents(docs);
+    }
+
+    @Test
+    public void testGetFedoraLastModified() throws Exception {
+        String uri = server.url("/fcrepo/cow/moo").toString();
+
+        server.enqueue(new MockResponse().setHeader("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT"));
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse().setResponseCode(410));
+
+        assertEquals(784903526000L, indexer.get_fedora_last_modified(uri));
+        assertEquals(-1, indexer.get_fedora_last_modified(uri));
+        assertEquals(-1, indexer.get_fedora_last_modified(uri));
+
+        RecordedRequest head = server.takeRequest();
+        assertEquals("HEAD", head.getMethod());
+        assertNotNull(head.getHeader("Authorization"));
+    }
+
+    @Test
+    public void testCachedFieldPlan() throws Exception {
+        Path cache = Files.createTempFile("field-plan", ".json");
+        Files.delete(cache);
+
+        JSONObject props = new JSONObject().put("name", new JSONObject()).put("name_suggest", new JSONObject());
+        JSONObject config = new JSONObject().put("test", new JSONObject().put("mappings", new JSONObject().put(
+            "_doc", new JSONObject().put("properties", props))));
+
+        // Without a cached plan the index is checked before starting, then the plan is saved
+        server.enqueue(new MockResponse().setBody(config.toString()));
+
+        ElasticSearchIndexer first = new ElasticSearchIndexer(es_index_url.toString(), es_config_url.toString(),
+                                                              "admin", "admin", ElasticSearchIndexer.default_client(),
+                                                              cache, false);
+        FieldPlan plan = first.get_field_plan();
+
+        assertTrue(plan.suggest_fields().contains("name"));
+        assertEquals(plan.version(), FieldPlan.read(cache, es_index_url.toString()).version());
+        server.takeRequest();
+
+        // With a cached plan, starting does not wait for the index, which is checked in the background
+        // until it responds. The mapping has changed meanwhile.
+        props.put("title", new JSONObject());
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody(config.toString()));
+
+        ElasticSearchIndexer second = new ElasticSearchIndexer(es_index_url.toString(), es_config_url.toString(),
+                                                               "admin", "admin", ElasticSearchIndexer.default_client(),
+                                                               cache, false);
+
+        assertEquals(plan.version(), second.get_field_plan().version());
+        assertTrue(second.await_index_check(30, TimeUnit.SECONDS));
+
+        FieldPlan checked = second.get_field_plan();
+
+        assertTrue(checked.supported_fields().contains("title"));
+        assertFalse(plan.version().equals(checked.version()));
+        assertEquals(checked.version(), FieldPlan.read(cache, es_index_url.toString()).version());
+
+        Files.delete(cache);
+    }
+
+    @Test
+    public void testWritesWaitForIndexCheck() throws Exception {
+        Path cache = Files.createTempFile("field-plan", ".json");
+        Files.delete(cache);
+
+        JSONObject props = new JSONObject().put("name", new JSONObject());
+        JSONObject config = new JSONObject().put("test", new JSONObject().put("mappings", new JSONObject().put(
+            "_doc", new JSONObject().put("properties", props))));
+
+        server.enqueue(new MockResponse().setBody(config.toString()));
+        new ElasticSearchIndexer(es_index_url.toString(), es_config_url.toString(), "admin", "admin",
+                                 ElasticSearchIndexer.default_client(), cache, false);
+        server.takeRequest();
+
+        // The check with the cached plan fails at first and is retried
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody(config.toString()));
+        server.enqueue(new MockResponse().setBody("{\"errors\": false}"));
+
+        ElasticSearchIndexer cached = new ElasticSearchIndexer(es_index_url.toString(), es_config_url.toString(),
+                                                               "admin", "admin", ElasticSearchIndexer.default_client(),
+                                                               cache, false);
+
+        // The write is only sent once the index is known to exist
+        cached.delete_documents(Collections.singleton("moo"));
+
+        assertEquals("GET", server.takeRequest(5, TimeUnit.SECONDS).getMethod());
+        assertEquals("GET", server.takeRequest(5, TimeUnit.SECONDS).getMethod());
+        assertEquals("POST", server.takeRequest(5, TimeUnit.SECONDS).getMethod());
+
+        Files.delete(cache);
+    }
+
+    @Test
+    public void testEnrichment() throws Exception {
+        String funder_uri = server.url("/fcrepo/funders/nih").toString();
+        String grant_uri = server.url("/fcrepo/grants/1").toString();
+        FedoraResource grant = new FedoraResource(new JSONObject().put("@id", grant_uri).put("funder", funder_uri)
+                                                                  .toString(), 1000);
+
+        Map<String, List<String>> links = Enricher.parse_links("funder=name+localKey");
+        Enricher enricher = new Enricher(indexer, links, 10, 60000, new MetricsRegistry());
+        indexer.set_enricher(enricher);
+
+        int requests = server.getRequestCount();
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("name", "NIH").put("localKey", "nih")
+                                                                  .put("url", "https://nih.gov").toString()));
+
+        JSONObject enriched = new JSONObject(enricher.enrich(grant_uri, grant).json);
+
+        assertEquals("NIH", enriched.get("funder_name"));
+        assertEquals("nih", enriched.get("funder_localKey"));
+        assertFalse(enriched.has("funder_url"));
+        assertEquals(funder_uri, server.takeRequest().getRequestUrl().toString());
+
+        // The funder is cached
+        assertEquals("NIH", new JSONObject(enricher.enrich(grant_uri, grant).json).get("funder_name"));
+        assertEquals(requests + 1, server.getRequestCount());
+
+        // Until a message says it changed
+        indexer.resource_changed(funder_uri);
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("name", "NIH!").toString()));
+
+        enriched = new JSONObject(enricher.enrich(grant_uri, grant).json);
+
+        assertEquals("NIH!", enriched.get("funder_name"));
+        assertFalse(enriched.has("funder_localKey"));
+        assertEquals(requests + 2, server.getRequestCount());
+    }
+
+    @Test
+    public void testCascade() throws Exception {
+        JSONObject props = new JSONObject().put("@id", new JSONObject()).put("journal", new JSONObject())
+                                           .put("journalName", new JSONObject())
+                                           .put("journal_journalName", new JSONObject());
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("test", new JSONObject().put(
+            "mappings", new JSONObject().put("_doc", new JSONObject().put("properties", props)))).toString()));
+
+        ElasticSearchIndexer es = new ElasticSearchIndexer(es_index_url.toString(), es_config_url.toString(),
+                                                           "admin", "admin");
+        server.takeRequest();
+
+        es.set_enricher(new Enricher(es, Enricher.parse_links("journal=journalName"), 10, 60000,
+                                     new MetricsRegistry()));
+
+        String pub_uri = server.url("/fcrepo/publications/1").toString();
+        String journal_uri = server.url("/fcrepo/journals/1").toString();
+        String no_hits = new JSONObject().put("hits", new JSONObject().put("hits", new JSONArray())).toString();
+
+        // The publication embeds the name of its journal. Nothing refers to the publication.
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("@id", pub_uri).put("journal", journal_uri)
+                                                                  .toString()));
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("@id", journal_uri)
+                                                                  .put("journalName", "Old").toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody(no_hits));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.CREATED);
+        m.setResourceURI(pub_uri);
+        es.handle(m);
+
+        server.takeRequest();
+        server.takeRequest();
+        assertEquals("Old", new JSONObject(server.takeRequest().getBody().readUtf8()).get("journal_journalName"));
+        assertTrue(server.takeRequest().getPath().contains("/_search"));
+
+        // A new name of the journal is copied to the publication with a partial update, without fetching it
+        // or fetching the journal twice. The publication is found by searching the index for the journal.
+        JSONObject hit = new JSONObject().put("_source", new JSONObject().put("@id", pub_uri)
+                                                                        .put("journal", journal_uri));
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("@id", journal_uri)
+                                                                  .put("journalName", "New").toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("hits",
+            new JSONObject().put("hits", new JSONArray().put(hit))).toString()));
+        server.enqueue(new MockResponse().setBody("{\"errors\": false, \"items\": []}"));
+
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(journal_uri);
+        es.handle(m);
+
+        assertEquals(journal_uri, server.takeRequest().getRequestUrl().toString());
+        server.takeRequest();
+
+        RecordedRequest search = server.takeRequest();
+        JSONObject query = new JSONObject(search.getBody().readUtf8());
+
+        // A single page of hits is read without opening a scroll
+        assertNull(search.getRequestUrl().queryParameter("scroll"));
+        assertEquals(journal_uri, query.getJSONObject("query").getJSONObject("bool").getJSONArray("should")
+                                       .getJSONObject(0).getJSONObject("term").get("journal"));
+
+        RecordedRequest bulk = server.takeRequest();
+        String[] lines = bulk.getBody().readUtf8().split("\n");
+
+        assertEquals(2, lines.length);
+        assertEquals(ElasticSearchIndexer.get_document_id(pub_uri),
+                     new JSONObject(lines[0]).getJSONObject("update").get("_id"));
+        assertTrue(new JSONObject(lines[0]).getJSONObject("update").getInt("retry_on_conflict") > 0);
+        assertEquals("New", new JSONObject(lines[1]).getJSONObject("doc").get("journal_journalName"));
+
+        // Once nothing refers to the journal, changes to it are not copied anywhere
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("@id", journal_uri)
+                                                                  .put("journalName", "Newer").toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        server.enqueue(new MockResponse().setBody(no_hits));
+
+        int requests = server.getRequestCount();
+        es.handle(m);
+
+        assertEquals(requests + 3, server.getRequestCount());
+    }
+
+    @Test
+    public void testPartialUpdate() throws Exception {
+        indexer.set_partial_updates(10);
+
+        String uri = server.url("/fcrepo/cow/moo").toString();
+        JSONObject res_json = new JSONObject().put("@id", uri).put("name", "moo").put("journalName", "Cow News");
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(uri);
+
+        // Not indexed before, so sent in full
+        server.enqueue(new MockResponse().setBody(res_json.toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        indexer.handle(m);
+
+        server.takeRequest();
+        RecordedRequest post = server.takeRequest();
+        assertTrue(post.getPath().endsWith("/_doc/" + ElasticSearchIndexer.get_document_id(uri) + "?pretty"));
+        assertTrue(new JSONObject(post.getBody().readUtf8()).has("journalName_suggest"));
+
+        // Only the changed field is sent, without completions of the unchanged one
+        res_json.put("name", "oink");
+        server.enqueue(new MockResponse().setBody(res_json.toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        indexer.handle(m);
+
+        server.takeRequest();
+        post = server.takeRequest();
+        assertTrue(post.getPath().endsWith("/_update"));
+        assertEquals("{\"doc\":{\"name\":\"oink\"}}", post.getBody().readUtf8());
+
+        // A removed field is cleared
+        res_json.remove("name");
+        server.enqueue(new MockResponse().setBody(res_json.toString()));
+        server.enqueue(new MockResponse().setBody("{}"));
+        indexer.handle(m);
+
+        server.takeRequest();
+        assertEquals("{\"doc\":{\"name\":null}}", server.takeRequest().getBody().readUtf8());
+
+        // Nothing changed, so nothing is sent
+        int requests = server.getRequestCount();
+        server.enqueue(new MockResponse().setBody(res_json.toString()));
+        indexer.handle(m);
+        assertEquals(requests + 1, server.getRequestCount());
+        server.takeRequest();
+
+        // A document missing from the index is indexed in full
+        res_json.put("journalName", "Pig News");
+        server.enqueue(new MockResponse().setBody(res_json.toString()));
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("{}"));
+        server.enqueue(new MockResponse().setBody("{}"));
+        indexer.handle(m);
+
+        server.takeRequest();
+        assertTrue(server.takeRequest().getPath().endsWith("/_update"));
+        JSONObject full = new JSONObject(server.takeRequest().getBody().readUtf8());
+        assertEquals("Pig News", full.get("journalName"));
+        assertEquals(2, full.getJSONArray("journalName_suggest").length());
+    }
+
+    @Test
+    public void testExternalVersioning() throws Exception {
+        indexer.set_external_versioning(true);
+
+        String uri = server.url("/fcrepo/cow/moo").toString();
+        String modified = "Tue, 15 Nov 1994 12:45:26 GMT";
+        long version = 784903526000L;
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.MODIFIED);
+        m.setResourceURI(uri);
+
+        // A newer version is already indexed, so the write is rejected and ignored
+        server.enqueue(new MockResponse().setHeader("Last-Modified", modified).setBody(
+            new JSONObject().put("@id", uri).put("name", "moo").toString()));
+        server.enqueue(new MockResponse().setResponseCode(409).setBody("{}"));
+        indexer.handle(m);
+
+        server.takeRequest();
+        HttpUrl post_url = server.takeRequest().getRequestUrl();
+
+        assertEquals(String.valueOf(version), post_url.queryParameter("version"));
+        assertEquals("external_gte", post_url.queryParameter("version_type"));
+        assertEquals(1, indexer.get_stale_writes());
+
+        // Bulk writes are versioned too and conflicts are not failures
+        Map<String, String> docs = new LinkedHashMap<>();
+        docs.put(uri, new JSONObject().put("name", "moo").put(FEDORA_LAST_MODIFIED_FIELD, version).toString());
+
+        JSONObject conflict = new JSONObject().put("index", new JSONObject().put("status", 409).put("error",
+            new JSONObject().put("type", "version_conflict_engine_exception")));
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("errors", true).put("items",
+            new JSONArray().put(conflict)).toString()));
+
+        indexer.index_documents(docs);
+
+        JSONObject action = new JSONObject(server.takeRequest().getBody().readUtf8().split("\n")[0]);
+
+        assertEquals(version, action.getJSONObject("index").getLong("version"));
+        assertEquals(2, indexer.get_stale_writes());
+
+        // An update which still conflicts after its retries is a failure, not a stale write
+        JSONObject update_conflict = new JSONObject().put("update", new JSONObject().put("status", 409).put("error",
+            new JSONObject().put("type", "version_conflict_engine_exception")));
+        server.enqueue(new MockResponse().setBody(new JSONObject().put("errors", true).put("items",
+            new JSONArray().put(update_conflict)).toString()));
+
+        try {
+            indexer.update_fields(Collections.singletonMap(uri, new JSONObject().put("name", "oink")));
+            fail("Expected the conflicting update to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version_conflict_engine_exception"));
+        }
+
+        server.takeRequest();
+        assertEquals(2, indexer.get_stale_writes());
+
+        // Partial updates cannot carry a version
+        try {
+            indexer.set_partial_updates(10);
+            fail("Expected partial updates to be refused");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("external versioning"));
+        }
+    }
+
+    @Test
+    public void testLastModifiedField() throws Exception {
+        String uri = server.url("/fcrepo/cow/moo").toString();
+        String json = new JSONObject().put("@id", uri).put("name", "moo").toString();
+        long modified = 784903526000L;
+
+        // The index created by the indexer maps the field, so it is written
+        assertTrue(indexer.get_field_plan().supported_fields().contains(FEDORA_LAST_MODIFIED_FIELD));
+        assertEquals(modified, new JSONObject(indexer.normalize(new FedoraResource(json, modified)))
+            .getLong(FEDORA_LAST_MODIFIED_FIELD));
+
+        // An existing index whose mapping lacks the field, which may be strict, is not sent it
+        try (InputStream is = ElasticSearchIndexerTest.class.getResourceAsStream("/esindex.json")) {
+            server.enqueue(new MockResponse().setBody(new BufferedReader(new InputStreamReader(is,
+                Charset.forName("UTF-8"))).lines().collect(Collectors.joining("\n"))));
+        }
+
+        ElasticSearchIndexer existing = new ElasticSearchIndexer(es_index_url.toString(), es_config_url.toString(),
+                                                                 "admin", "admin");
+        server.takeRequest();
+
+        assertFalse(new JSONObject(existing.normalize(new FedoraResource(json, modified)))
+            .has(FEDORA_LAST_MODIFIED_FIELD));
+    }
+
+    @Test
+    public void testDroppedFields() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        indexer.set_dropped_field_metrics(metrics, 60000);
+
+        String uri = server.url("/fcrepo/cow/moo").toString();
+
+        for (int i = 0; i < 3; i++) {
+            JSONObject doc = new JSONObject(indexer.normalize(new FedoraResource(new JSONObject().put("@id", uri)
+                .put("name", "moo").put("healthy", true).put("title", new JSONObject().put("a", i)).toString(), -1)));
+
+            assertEquals("moo", doc.get("name"));
+            assertFalse(doc.has("healthy") || doc.has("title"));
+        }
+
+        String rendered = metrics.render();
+        String metric = "pass_indexer_dropped_fields_total{index=\"" + es_index_url + "\",field=";
+
+        assertTrue(rendered.contains(metric + "\"healthy\",reason=\"unmapped\"} 3"));
+        assertTrue(rendered.contains(metric + "\"title\",reason=\"object\"} 3"));
+
+        indexer.log_dropped_fields();
+    }
+
+    // Test that each stage of handling a message is recorded as a flight recorder event.
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        String fedora_res_uri = server.url("/fcrepo/cow/moo").toString();
+        // Sizes are in bytes, which differ from characters outside ASCII
+        String res = new JSONObject().put("@id", fedora_res_uri).put("name", "m\u00f6\u00f6").put("moo", "dropped")
+                                     .toString();
+
+        // GET for Fedora resource
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/ld+json; charset=utf-8")
+                                         .setBody(res));
+
+        // POST to Elasticsearch
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(FedoraAction.CREATED);
+        m.setResourceURI(fedora_res_uri);
+
+        Path file = Files.createTempFile("pass-indexer", ".jfr");
+        List<RecordedEvent> events;
+
+        try (Recording recording = new Recording()) {
+            recording.enable("org.dataconservancy.pass.indexer.Fetch");
+            recording.enable("org.dataconservancy.pass.indexer.Normalize");
+            recording.enable("org.dataconservancy.pass.indexer.Write");
+            recording.start();
+
+            indexer.handle(m);
+
+            recording.stop();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+
+        Map<String, RecordedEvent> by_name = events.stream().collect(
+            Collectors.toMap(e -> e.getEventType().getName(), e -> e, (a, b) -> a));
+
+        RecordedEvent fetch = by_name.get("org.dataconservancy.pass.indexer.Fetch");
+        assertEquals(fedora_res_uri, fetch.getString("uri"));
+        assertEquals(200, fetch.getInt("status"));
+        assertEquals(res.getBytes(Charset.forName("UTF-8")).length, fetch.getLong("size"));
+
+        RecordedEvent normalize = by_name.get("org.dataconservancy.pass.indexer.Normalize");
+        assertEquals(fedora_res_uri, normalize.getString("uri"));
+        assertEquals(1, normalize.getInt("dropped"));
+
+        RecordedEvent write = by_name.get("org.dataconservancy.pass.indexer.Write");
+        assertEquals(fedora_res_uri, write.getString("uri"));
+        assertEquals("index", write.getString("action"));
+        assertEquals(200, write.getInt("status"));
+        assertEquals(es_index_url.toString(), write.getString("index"));
+        assertFalse(write.getDuration().isNegative());
+
+        // The GET for the Fedora resource, then the POST of the document
+        server.takeRequest();
+        assertEquals(server.takeRequest().getBodySize(), write.getLong("size"));
+    }
 }
@@ -0,0 +1,218 @@
+package org.dataconservancy.pass.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FanOutIndexerTest {
+    private MockWebServer server;
+    private final AtomicInteger fedora_gets = new AtomicInteger();
+    private final Map<String, List<String>> bulks = new ConcurrentHashMap<>();
+    private volatile boolean broken_index_fails = true;
+
+    @Before
+    public void setup() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath();
+
+                if (path.startsWith("/fcrepo/")) {
+                    fedora_gets.incrementAndGet();
+                    JSONObject doc = new JSONObject().put("@id", server.url(path).toString()).put("name", "moo")
+                                                     .put("title", "oink");
+
+                    if (path.contains("journal")) {
+                        doc.put("@type", "Journal");
+                    }
+
+                    return new MockResponse().setHeader("Content-Type", "application/ld+json").setBody(doc.toString());
+                }
+
+                // Index a only maps name, index b only maps title
+                if (path.equals("/es/a/") || path.equals("/es/b/") || path.equals("/es/broken/")) {
+                    String field = path.equals("/es/a/") ? "name" : "title";
+                    JSONObject props = new JSONObject().put("@id", new JSONObject()).put(field, new JSONObject());
+                    return new MockResponse().setBody(new JSONObject().put("mappings", new JSONObject().put(
+                        "_doc", new JSONObject().put("properties", props))).toString());
+                }
+
+                if (path.endsWith("/_doc/_bulk")) {
+                    if (path.startsWith("/es/broken/") && broken_index_fails) {
+                        return new MockResponse().setResponseCode(500);
+                    }
+
+                    bulks.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(request.getBody().readUtf8());
+                    return new MockResponse().setBody("{\"errors\": false}");
+                }
+
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        server.shutdown();
+    }
+
+    private IndexSink sink(String index, MetricsRegistry metrics) throws IOException {
+        return new IndexSink(new ElasticSearchIndexer(server.url(index).toString(), "unused", "admin", "admin"), 10,
+                             50, metrics);
+    }
+
+    private FedoraMessage message(FedoraAction action, String path) {
+        FedoraMessage m = new FedoraMessage();
+        m.setAction(action);
+        m.setResourceURI(server.url(path).toString());
+        return m;
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        try (FanOutIndexer fan_out = new FanOutIndexer(Arrays.asList(sink("/es/a/", metrics),
+                                                                     sink("/es/b/", metrics)))) {
+            fan_out.handle(message(FedoraAction.CREATED, "/fcrepo/cow"));
+            fan_out.handle(message(FedoraAction.DELETED, "/fcrepo/pig"));
+        }
+
+        // Fetched once, normalized for each index with its own plan
+        assertEquals(1, fedora_gets.get());
+
+        String a = String.join("", bulks.get("/es/a/_doc/_bulk"));
+        String b = String.join("", bulks.get("/es/b/_doc/_bulk"));
+
+        assertTrue(a.contains("\"name\":\"moo\"") && !a.contains("oink"));
+        assertTrue(b.contains("\"title\":\"oink\"") && !b.contains("moo"));
+        assertTrue(a.contains("\"delete\"") && b.contains("\"delete\""));
+        assertTrue(metrics.render().contains(
+            "pass_indexer_sink_documents_total{sink=\"" + server.url("/es/a/") + "\",outcome=\"indexed\"} 2"));
+    }
+
+    @Test
+    public void testTypeRouting() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        IndexSink a = sink("/es/a/", metrics);
+        IndexSink b = sink("/es/b/", metrics);
+
+        // Journals go to index b, everything else to index a
+        TypeRouter router = new TypeRouter(a.get_name());
+        router.add_route("http://oapass.org/ns/pass#Journal", b.get_name());
+
+        FedoraMessage deleted_journal = message(FedoraAction.DELETED, "/fcrepo/journal2");
+        deleted_journal.setResourceTypes(new String[] {"http://oapass.org/ns/pass#Journal"});
+
+        try (FanOutIndexer fan_out = new FanOutIndexer(Arrays.asList(a, b), router)) {
+            fan_out.handle(message(FedoraAction.CREATED, "/fcrepo/cow"));
+            fan_out.handle(message(FedoraAction.CREATED, "/fcrepo/journal1"));
+            fan_out.handle(deleted_journal);
+            fan_out.handle(message(FedoraAction.DELETED, "/fcrepo/pig"));
+        }
+
+        String a_bulk = String.join("", bulks.get("/es/a/_doc/_bulk"));
+        String b_bulk = String.join("", bulks.get("/es/b/_doc/_bulk"));
+
+        assertTrue(a_bulk.contains(doc_id("/fcrepo/cow")) && !b_bulk.contains(doc_id("/fcrepo/cow")));
+        assertTrue(b_bulk.contains(doc_id("/fcrepo/journal1")) && !a_bulk.contains(doc_id("/fcrepo/journal1")));
+        assertTrue(b_bulk.contains(doc_id("/fcrepo/journal2")) && !a_bulk.contains(doc_id("/fcrepo/journal2")));
+
+        // Without types a deletion goes to every index
+        assertTrue(a_bulk.contains(doc_id("/fcrepo/pig")) && b_bulk.contains(doc_id("/fcrepo/pig")));
+    }
+
+    private String doc_id(String path) throws IOException {
+        return ElasticSearchIndexer.get_document_id(server.url(path).toString());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        IndexSink broken = sink("/es/broken/", metrics);
+        broken.set_breaker(1, 60000);
+
+        try (FanOutIndexer fan_out = new FanOutIndexer(Arrays.asList(sink("/es/a/", metrics), broken))) {
+            fan_out.handle(message(FedoraAction.CREATED, "/fcrepo/cow"));
+
+            for (int i = 0; i < 100 && !broken.is_breaker_open(); i++) {
+                Thread.sleep(100);
+            }
+
+            assertTrue(broken.is_breaker_open());
+
+            // Documents for the broken index are dropped while the others are still written
+            broken_index_fails = false;
+            fan_out.handle(message(FedoraAction.CREATED, "/fcrepo/pig"));
+        }
+
+        assertEquals(2, bulks.get("/es/a/_doc/_bulk").stream().mapToInt(bulk -> bulk.split("\n").length / 2).sum());
+        assertFalse(bulks.containsKey("/es/broken/_doc/_bulk"));
+        assertTrue(metrics.render().contains(
+            "pass_indexer_sink_documents_total{sink=\"" + server.url("/es/broken/") + "\",outcome=\"dropped\"} 2"));
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        Path journal = Files.createTempFile("sink", ".log");
+        MetricsRegistry metrics = new MetricsRegistry();
+        IndexSink broken = sink("/es/broken/", metrics);
+        broken.set_breaker(1, 60000);
+        broken.set_journal(journal);
+
+        try (FanOutIndexer fan_out = new FanOutIndexer(Collections.singletonList(broken))) {
+            fan_out.handle(message(FedoraAction.CREATED, "/fcrepo/cow"));
+
+            for (int i = 0; i < 100 && !broken.is_breaker_open(); i++) {
+                Thread.sleep(100);
+            }
+
+            fan_out.handle(message(FedoraAction.DELETED, "/fcrepo/pig"));
+        }
+
+        assertFalse(bulks.containsKey("/es/broken/_doc/_bulk"));
+
+        // The dropped documents are fetched and indexed again on the next start, then leave the journal
+        broken_index_fails = false;
+        IndexSink fixed = sink("/es/broken/", metrics);
+        fixed.set_journal(journal);
+
+        assertEquals(Arrays.asList(server.url("/fcrepo/cow").toString(), server.url("/fcrepo/pig").toString()),
+                     fixed.get_unwritten());
+
+        try (FanOutIndexer fan_out = new FanOutIndexer(Collections.singletonList(fixed))) {
+            fan_out.replay();
+        }
+
+        String bulk = String.join("", bulks.get("/es/broken/_doc/_bulk"));
+        assertTrue(bulk.contains(doc_id("/fcrepo/cow")) && bulk.contains(doc_id("/fcrepo/pig")));
+
+        IndexSink reopened = sink("/es/broken/", metrics);
+        reopened.set_journal(journal);
+        assertTrue(reopened.get_unwritten().isEmpty());
+        reopened.close();
+
+        Files.delete(journal);
+    }
+}
@@ -1,17 +1,24 @@
 package org.dataconservancy.pass.indexer;
 
+import static org.dataconservancy.pass.indexer.IndexerConstants.FEDORA_LAST_MODIFIED_FIELD;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import org.apache.activemq.junit.EmbeddedActiveMQBroker;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -44,6 +51,7 @@ public class FedoraIndexerServiceTest {
         service.setFedoraPass("moo");
         service.setJmsConnectionFactory(broker.createConnectionFactory());
         service.setJmsQueue(queue);
+        service.setAdminPort(0);
 
         service.start();
 
@@ -137,5 +145,90 @@ public class FedoraIndexerServiceTest {
         assertEquals(res_json.get("@id"), payload.get("@id"));
         assertEquals("application/json; charset=utf-8", post.getHeader("Content-Type"));
         assertTrue(post.getRequestUrl().toString().startsWith(es_index_url.toString()));
+
+        // Lag is measured from the time of the event, long ago
+        String metrics = service.getMetrics().render();
+        assertTrue(metrics.contains("pass_indexer_lag_milliseconds_count{stage=\"total\"} 1\n"));
+        assertTrue(metrics.contains("pass_indexer_lag_milliseconds_bucket{stage=\"total\",le=\"+Inf\"} 1\n"));
+        assertTrue(metrics.contains("pass_indexer_lag_milliseconds_bucket{stage=\"total\",le=\"3600000\"} 0\n"));
+
+        service.setReadyMaxLagMillis(60000);
+
+        Request ready = new Request.Builder()
+            .url("http://localhost:" + service.getAdminServer().get_port() + "/ready").build();
+
+        // The old event only counted while it was handled
+        try (Response response = new OkHttpClient().newCall(ready).execute()) {
+            assertEquals(200, response.code());
+
+            JSONObject result = new JSONObject(response.body().string());
+            assertEquals(true, result.getBoolean("ready"));
+            assertEquals(0, result.getLong("lag_millis"));
+            assertTrue(result.getLong("max_lag_millis") > 60000);
+        }
+
+        // A consumer which stopped is not ready, whatever its lag
+        jms_client.close();
+
+        try (Response response = new OkHttpClient().newCall(ready).execute()) {
+            assertEquals(503, response.code());
+
+            JSONObject result = new JSONObject(response.body().string());
+            assertEquals(false, result.getBoolean("ready"));
+            assertEquals(false, result.getBoolean("connected"));
+        }
+    }
+
+    // Test reloading the mapping through the admin server.
+    @Test
+    public void testReloadMapping() throws Exception {
+        JSONObject config;
+
+        try (InputStream is = FedoraIndexerServiceTest.class.getResourceAsStream("/esindex.json")) {
+            config = new JSONObject(new JSONTokener(is));
+        }
+
+        // The index was created with the field holding last modified times as well
+        config.getJSONObject("mappings").getJSONObject("_doc").getJSONObject("properties")
+              .put("newField", new JSONObject().put("type", "keyword"))
+              .put(FEDORA_LAST_MODIFIED_FIELD, new JSONObject().put("type", "long").put("index", false));
+
+        // GET for Elasticsearch index config
+        server.enqueue(new MockResponse().setBody(config.toString()));
+
+        Request post = new Request.Builder()
+            .url("http://localhost:" + service.getAdminServer().get_port() + "/mapping/reload")
+            .post(RequestBody.create(null, new byte[0])).build();
+
+        try (Response response = new OkHttpClient().newCall(post).execute()) {
+            assertEquals(200, response.code());
+
+            JSONObject result = new JSONObject(response.body().string());
+            assertEquals("newField", result.getJSONArray("enabled").getString(0));
+            assertEquals(1, result.getJSONArray("enabled").length());
+        }
+
+        assertEquals("GET", server.takeRequest().getMethod());
+
+        // A reload which finds the change already made, as if by the poller, enables nothing
+        server.enqueue(new MockResponse().setBody(config.toString()));
+
+        try (Response response = new OkHttpClient().newCall(post).execute()) {
+            assertEquals(0, new JSONObject(response.body().string()).getJSONArray("enabled").length());
+        }
+
+        // The change is still there to see
+        Request get = new Request.Builder()
+            .url("http://localhost:" + service.getAdminServer().get_port() + "/mapping").build();
+
+        try (Response response = new OkHttpClient().newCall(get).execute()) {
+            assertEquals(200, response.code());
+
+            JSONObject change = new JSONObject(response.body().string()).getJSONObject("last_change");
+            assertEquals("newField", change.getJSONArray("enabled").getString(0));
+            assertEquals(1, change.getJSONArray("enabled").length());
+            assertEquals(0, change.getJSONArray("disabled").length());
+            assertTrue(!change.getString("version").equals(change.getString("previous_version")));
+        }
     }
 }
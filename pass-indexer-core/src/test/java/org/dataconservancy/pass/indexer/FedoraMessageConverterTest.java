@@ -2,6 +2,7 @@ package org.dataconservancy.pass.indexer;
 
 import static org.junit.Assert.assertEquals;
 
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -85,6 +86,7 @@ public class FedoraMessageConverterTest {
         FedoraMessage m = FedoraMessageConverter.convert(jms_text_msg);
 
         assertEquals(FedoraAction.CREATED, m.getAction());
+        assertEquals(Instant.parse("2018-04-10T13:37:49.667Z").toEpochMilli(), m.getEventTime());
         assertEquals("http://fcrepo:8080/fcrepo/rest/grants/30/46/79/7e/3046797e-227c-4da0-ae95-e1828561ca5f",
                      m.getResourceURI());
 
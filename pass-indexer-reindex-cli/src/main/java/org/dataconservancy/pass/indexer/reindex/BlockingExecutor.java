@@ -3,8 +3,9 @@ package org.dataconservancy.pass.indexer.reindex;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,6 +18,9 @@ public class BlockingExecutor implements Executor {
     final Semaphore worker;
     final int nthreads;
 
+    // Every running command is a registered party, along with the owner waiting for them to finish.
+    final Phaser running = new Phaser(1);
+
     public BlockingExecutor(int nthreads) {
         this.nthreads = nthreads;
         exe = Executors.newFixedThreadPool(nthreads);
@@ -31,26 +35,33 @@ public class BlockingExecutor implements Executor {
             Thread.currentThread().interrupt();
             throw new RuntimeException(e);
         }
-        exe.execute(() -> {
-            try {
-                command.run();
-            } catch (Throwable t) {
-                LOG.warn("Thread terminaed with error", t);
-            } finally {
-                worker.release();
-            }
-        });
+        running.register();
+
+        try {
+            exe.execute(() -> {
+                try {
+                    command.run();
+                } catch (Throwable t) {
+                    LOG.warn("Thread terminaed with error", t);
+                } finally {
+                    worker.release();
+                    running.arriveAndDeregister();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Never runs, so awaitDone must not wait for it
+            running.arriveAndDeregister();
+            worker.release();
+            throw e;
+        }
     }
 
+    /**
+     * Wait for all commands executed so far to finish.
+     */
     public void awaitDone() {
         try {
-            while (true) {
-                if (worker.tryAcquire(nthreads, 0, TimeUnit.SECONDS)) {
-                    worker.release(nthreads);
-                    return;
-                }
-                Thread.sleep(1000);
-            }
+            running.awaitAdvanceInterruptibly(running.arrive());
         } catch (InterruptedException e) {
             exe.shutdown();
             Thread.currentThread().interrupt();
@@ -58,4 +69,8 @@ public class BlockingExecutor implements Executor {
         }
     }
 
+    public void shutdown() {
+        exe.shutdown();
+    }
+
 }
@@ -0,0 +1,410 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import static org.dataconservancy.pass.indexer.IndexerConstants.FEDORA_LAST_MODIFIED_FIELD;
+import static org.dataconservancy.pass.indexer.IndexerConstants.JSON;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.dataconservancy.pass.indexer.ElasticSearchIndexer;
+import org.dataconservancy.pass.model.PassEntity;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds documents in the index which are missing, stale or orphaned compared to Fedora, and
+ * optionally repairs them, without fetching or rewriting documents which are fine.
+ *
+ * Document ids are split into buckets by hash. A digest of the id and fingerprint of every member
+ * of a bucket is computed both from Fedora and from the index. The fingerprint is the last
+ * modified time of the Fedora resource, found with a HEAD request for each listed resource and
+ * stored in each document when it is indexed. The index is read by scrolling over ids and stored
+ * fingerprints only. Only buckets whose digests differ are compared member by member, in a second
+ * pass, and only the documents which differ are fetched from Fedora and written in bulk. The
+ * second pass lists Fedora again for the URIs of members, but takes their fingerprints from the
+ * first, kept by a hash of each id.
+ *
+ * Documents indexed before fingerprints were stored have none, so they are all found to be stale
+ * the first time. Fingerprints are only stored in an index whose mapping has the field.
+ */
+public class ConsistencyChecker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsistencyChecker.class);
+
+    static final int SCROLL_SIZE = 1000;
+    static final String SCROLL_KEEP_ALIVE = "5m";
+
+    // Fingerprint of a resource whose last modified time could not be found
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final ElasticSearchIndexer es;
+    private final OkHttpClient client;
+    private final String searchUrl;
+    private final String scrollUrl;
+    private final BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister;
+    private final Collection<Class<? extends PassEntity>> types;
+
+    private int buckets = 4096;
+    private int threads = 4;
+    private int bulkSize = 500;
+
+    /**
+     * @param es indexer used to check, fetch and write documents
+     * @param client client used to scroll over the index
+     * @param esIndexUrl index checked
+     * @param lister hands each URI of the given type to the given sink as it is listed
+     * @param types types listed
+     */
+    public ConsistencyChecker(ElasticSearchIndexer es, OkHttpClient client, String esIndexUrl,
+                              BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister,
+                              Collection<Class<? extends PassEntity>> types) {
+        this.es = es;
+        this.client = client;
+        this.searchUrl = HttpUrl.get(esIndexUrl).resolve("_search").newBuilder()
+                                .addQueryParameter("scroll", SCROLL_KEEP_ALIVE).build().toString();
+        this.scrollUrl = HttpUrl.get(esIndexUrl).resolve("/_search/scroll").toString();
+        this.lister = lister;
+        this.types = types;
+    }
+
+    /**
+     * Set the number of buckets. More buckets mean fewer documents compared for each difference
+     * found. Defaults to 4096.
+     */
+    public void setBuckets(int buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * Set the number of threads making requests to Fedora. Defaults to four.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set the number of documents written or deleted with each bulk request. Defaults to 500.
+     */
+    public void setBulkSize(int bulkSize) {
+        this.bulkSize = bulkSize;
+    }
+
+    /**
+     * Differences found by a check.
+     */
+    public static class Report {
+        private final List<String> missing = new ArrayList<>();
+        private final List<String> stale = new ArrayList<>();
+        private final List<String> orphaned = new ArrayList<>();
+        private int differingBuckets;
+        private int errors;
+
+        /**
+         * @return URIs of Fedora resources without a document
+         */
+        public List<String> getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return URIs of Fedora resources whose document is for another version
+         */
+        public List<String> getStale() {
+            return stale;
+        }
+
+        /**
+         * @return ids of documents without a Fedora resource
+         */
+        public List<String> getOrphaned() {
+            return orphaned;
+        }
+
+        public int getDifferingBuckets() {
+            return differingBuckets;
+        }
+
+        /**
+         * @return number of Fedora resources which could not be checked, or documents which could
+         * not be repaired
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d differing buckets, %d missing, %d stale, %d orphaned, %d errors",
+                                 differingBuckets, missing.size(), stale.size(), orphaned.size(), errors);
+        }
+    }
+
+    /**
+     * Compare the index with Fedora.
+     *
+     * @param repair whether to index missing and stale documents and delete orphaned ones
+     * @return the differences found
+     * @throws IOException if the index cannot be read
+     */
+    public Report check(boolean repair) throws IOException {
+        Report report = new Report();
+        AtomicInteger errors = new AtomicInteger();
+
+        // First pass, digests of each bucket
+        AtomicLongArray fedoraDigests = new AtomicLongArray(buckets);
+        AtomicLongArray esDigests = new AtomicLongArray(buckets);
+        FingerprintMap fingerprints = new FingerprintMap();
+
+        listFedora((id, uri) -> {
+            long fingerprint = fingerprint(uri, errors);
+            fedoraDigests.addAndGet(bucket(id), entryHash(id, fingerprint));
+            fingerprints.put(id, fingerprint);
+        });
+
+        scrollIndex((id, fingerprint) -> esDigests.addAndGet(bucket(id), entryHash(id, fingerprint)));
+
+        BitSet differing = new BitSet(buckets);
+
+        for (int i = 0; i < buckets; i++) {
+            if (fedoraDigests.get(i) != esDigests.get(i)) {
+                differing.set(i);
+            }
+        }
+
+        report.differingBuckets = differing.cardinality();
+        LOG.info("{} of {} buckets differ", report.differingBuckets, buckets);
+
+        if (differing.isEmpty()) {
+            report.errors = errors.get();
+            return report;
+        }
+
+        // Second pass, members of differing buckets only, with the fingerprints found by the first
+        Map<String, String> fedoraUris = new ConcurrentHashMap<>();
+        Map<String, Long> fedoraMembers = new ConcurrentHashMap<>();
+        Map<String, Long> esMembers = new HashMap<>();
+
+        for (Class<? extends PassEntity> type : types) {
+            lister.accept(type, uri -> {
+                String id = documentId(uri.toString());
+
+                if (differing.get(bucket(id)) && fedoraUris.putIfAbsent(id, uri.toString()) == null) {
+                    fedoraMembers.put(id, fingerprints.get(id, UNKNOWN));
+                }
+            });
+        }
+
+        scrollIndex((id, fingerprint) -> {
+            if (differing.get(bucket(id))) {
+                esMembers.put(id, fingerprint);
+            }
+        });
+
+        fedoraMembers.forEach((id, fingerprint) -> {
+            Long indexed = esMembers.get(id);
+
+            if (indexed == null) {
+                report.missing.add(fedoraUris.get(id));
+            } else if (fingerprint == UNKNOWN || indexed.longValue() != fingerprint) {
+                report.stale.add(fedoraUris.get(id));
+            }
+        });
+
+        esMembers.keySet().stream().filter(id -> !fedoraMembers.containsKey(id)).forEach(report.orphaned::add);
+
+        // Errors of both passes and the repair add up
+        if (repair) {
+            repair(report, errors);
+        }
+
+        report.errors = errors.get();
+
+        return report;
+    }
+
+    // List Fedora resources, giving the id and URI of each to the consumer on the threads of an
+    // executor.
+    private void listFedora(BiConsumer<String, String> consumer) {
+        BlockingExecutor exe = new BlockingExecutor(threads);
+
+        try {
+            for (Class<? extends PassEntity> type : types) {
+                LOG.info("Checking " + type.getSimpleName());
+
+                lister.accept(type, uri -> {
+                    String id = documentId(uri.toString());
+                    exe.execute(() -> consumer.accept(id, uri.toString()));
+                });
+            }
+
+            exe.awaitDone();
+        } finally {
+            exe.shutdown();
+        }
+    }
+
+    private long fingerprint(String uri, AtomicInteger errors) {
+        try {
+            return es.get_fedora_last_modified(uri);
+        } catch (IOException e) {
+            LOG.warn("Could not check " + uri, e);
+            errors.incrementAndGet();
+            return UNKNOWN;
+        }
+    }
+
+    // Give the id and fingerprint of every document in the index to the consumer.
+    private void scrollIndex(BiConsumer<String, Long> consumer) throws IOException {
+        JSONObject query = new JSONObject().put("size", SCROLL_SIZE).put("sort", new JSONArray().put("_doc"))
+                                           .put("_source", new JSONArray().put(FEDORA_LAST_MODIFIED_FIELD));
+        JSONObject page = post(searchUrl, query);
+        String scrollId = null;
+
+        try {
+            while (true) {
+                scrollId = page.optString("_scroll_id", scrollId);
+                JSONArray hits = page.getJSONObject("hits").getJSONArray("hits");
+
+                if (hits.length() == 0) {
+                    break;
+                }
+
+                for (int i = 0; i < hits.length(); i++) {
+                    JSONObject hit = hits.getJSONObject(i);
+                    JSONObject source = hit.optJSONObject("_source");
+
+                    consumer.accept(hit.getString("_id"),
+                                    source == null ? -1 : source.optLong(FEDORA_LAST_MODIFIED_FIELD, -1));
+                }
+
+                page = post(scrollUrl, new JSONObject().put("scroll", SCROLL_KEEP_ALIVE).put("scroll_id", scrollId));
+            }
+        } finally {
+            if (scrollId != null) {
+                clearScroll(scrollId);
+            }
+        }
+    }
+
+    private JSONObject post(String url, JSONObject body) throws IOException {
+        Request post = new Request.Builder().url(url).post(RequestBody.create(JSON, body.toString())).build();
+
+        try (Response response = client.newCall(post).execute()) {
+            String result = response.body().string();
+
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to search index: " + url + " " + response.code() + " " + result);
+            }
+
+            return new JSONObject(result);
+        }
+    }
+
+    private void clearScroll(String scrollId) {
+        RequestBody body = RequestBody.create(JSON, new JSONObject().put("scroll_id", scrollId).toString());
+        Request delete = new Request.Builder().url(scrollUrl).delete(body).build();
+
+        try (Response response = client.newCall(delete).execute()) {
+            if (!response.isSuccessful()) {
+                LOG.debug("Could not clear scroll: " + response.code());
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not clear scroll", e);
+        }
+    }
+
+    private void repair(Report report, AtomicInteger errors) {
+        List<String> reindex = new ArrayList<>(report.missing);
+        reindex.addAll(report.stale);
+
+        BlockingExecutor exe = new BlockingExecutor(threads);
+
+        try {
+            for (List<String> batch : batches(reindex)) {
+                exe.execute(() -> {
+                    Map<String, String> docs = new LinkedHashMap<>();
+
+                    for (String uri : batch) {
+                        try {
+                            String doc = es.get_document(uri);
+
+                            if (doc != null) {
+                                docs.put(uri, doc);
+                            }
+                        } catch (IOException e) {
+                            LOG.warn("Could not fetch " + uri, e);
+                            errors.incrementAndGet();
+                        }
+                    }
+
+                    try {
+                        es.index_documents(docs);
+                    } catch (IOException e) {
+                        LOG.warn("Could not index documents", e);
+                        errors.addAndGet(docs.size());
+                    }
+                });
+            }
+
+            for (List<String> batch : batches(report.orphaned)) {
+                exe.execute(() -> {
+                    try {
+                        es.delete_documents(batch);
+                    } catch (IOException e) {
+                        LOG.warn("Could not delete documents", e);
+                        errors.addAndGet(batch.size());
+                    }
+                });
+            }
+
+            exe.awaitDone();
+        } finally {
+            exe.shutdown();
+        }
+    }
+
+    private List<List<String>> batches(List<String> list) {
+        List<List<String>> batches = new ArrayList<>();
+
+        for (int i = 0; i < list.size(); i += bulkSize) {
+            batches.add(list.subList(i, Math.min(list.size(), i + bulkSize)));
+        }
+
+        return batches;
+    }
+
+    private int bucket(String id) {
+        return (int) Long.remainderUnsigned(UriHashSet.hash(id), buckets);
+    }
+
+    private static long entryHash(String id, long fingerprint) {
+        return UriHashSet.hash(id + " " + fingerprint);
+    }
+
+    private static String documentId(String uri) {
+        try {
+            return ElasticSearchIndexer.get_document_id(uri);
+        } catch (IOException e) {
+            throw new RuntimeException("Bad Fedora URI: " + uri, e);
+        }
+    }
+}
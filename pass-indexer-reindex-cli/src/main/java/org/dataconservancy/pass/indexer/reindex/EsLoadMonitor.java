@@ -0,0 +1,121 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically checks how busy Elasticsearch is with writes and adjusts the rate of a limiter
+ * accordingly. When the write thread pool queue of any node grows past a threshold or writes
+ * have been rejected since the last check, the rate is halved, down to a tenth of the maximum.
+ * Otherwise it climbs back towards the maximum by a tenth of the maximum per check.
+ */
+public class EsLoadMonitor implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EsLoadMonitor.class);
+
+    static final double MIN_FACTOR = 0.1;
+    static final double INCREASE = 0.1;
+
+    // Thread pools handling writes. Before Elasticsearch 6.3 the write pool was split in two.
+    private static final String[] WRITE_POOLS = {"write", "bulk", "index"};
+
+    private final OkHttpClient client;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "es-load-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String statsUrl;
+    private final RateLimiter limiter;
+    private final double maxRate;
+    private final int queueLimit;
+
+    private double factor = 1;
+    private long lastRejected = -1;
+
+    /**
+     * @param esIndexUrl index whose cluster is monitored
+     * @param client settings of the requests for stats, which should not be rate limited by the limiter
+     * @param limiter limiter whose rate is adjusted
+     * @param queueLimit write queue size on any node considered to be overload
+     */
+    public EsLoadMonitor(String esIndexUrl, OkHttpClient client, RateLimiter limiter, int queueLimit) {
+        // Connections of its own, so that closing the monitor leaves those of the client alone
+        this.client = client.newBuilder().connectionPool(new ConnectionPool()).build();
+        this.statsUrl = HttpUrl.get(esIndexUrl).resolve("/_nodes/stats/thread_pool").toString();
+        this.limiter = limiter;
+        this.maxRate = limiter.getRate();
+        this.queueLimit = queueLimit;
+    }
+
+    public void start(long period, TimeUnit unit) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (Exception e) {
+                LOG.warn("Could not check Elasticsearch load", e);
+            }
+        }, period, period, unit);
+    }
+
+    void check() throws IOException {
+        long queued = 0;
+        long rejected = 0;
+
+        try (Response response = client.newCall(new Request.Builder().url(statsUrl).build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to retrieve node stats: " + statsUrl + " " + response.code());
+            }
+
+            JSONObject nodes = new JSONObject(response.body().string()).getJSONObject("nodes");
+
+            for (String node : nodes.keySet()) {
+                JSONObject pools = nodes.getJSONObject(node).getJSONObject("thread_pool");
+
+                for (String name : WRITE_POOLS) {
+                    JSONObject pool = pools.optJSONObject(name);
+
+                    if (pool != null) {
+                        queued = Math.max(queued, pool.optLong("queue"));
+                        rejected += pool.optLong("rejected");
+                    }
+                }
+            }
+        }
+
+        boolean overloaded = queued > queueLimit || (lastRejected >= 0 && rejected > lastRejected);
+        lastRejected = rejected;
+
+        double next = overloaded ? Math.max(MIN_FACTOR, factor / 2) : Math.min(1, factor + INCREASE);
+
+        if (next != factor) {
+            factor = next;
+            limiter.setRate(maxRate * factor);
+
+            if (overloaded) {
+                LOG.info("Elasticsearch write queue at {}, {} rejected, slowing to {} requests/s", queued, rejected,
+                         limiter.getRate());
+            } else {
+                LOG.info("Elasticsearch keeping up, speeding up to {} requests/s", limiter.getRate());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        client.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,75 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+/**
+ * Map of document ids to fingerprints which only keeps a 64 bit hash of each id, in open
+ * addressing tables of longs like UriHashSet, with the same tiny chance of two ids being taken for
+ * the same one. Thread safe.
+ */
+class FingerprintMap {
+
+    // Marks an empty slot, see UriHashSet.hash
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    FingerprintMap() {
+        keys = new long[1024];
+        values = new long[1024];
+    }
+
+    synchronized void put(String id, long fingerprint) {
+        if (size * 2 >= keys.length) {
+            resize();
+        }
+
+        if (insert(keys, values, UriHashSet.hash(id), fingerprint)) {
+            size++;
+        }
+    }
+
+    /**
+     * @return fingerprint of the id, or the given default if it has none
+     */
+    synchronized long get(String id, long otherwise) {
+        long h = UriHashSet.hash(id);
+        int mask = keys.length - 1;
+
+        for (int i = (int) h & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == h) {
+                return values[i];
+            }
+        }
+
+        return otherwise;
+    }
+
+    // Return true if the key was not in the table already.
+    private static boolean insert(long[] keys, long[] values, long h, long value) {
+        int mask = keys.length - 1;
+
+        for (int i = (int) h & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == EMPTY || keys[i] == h) {
+                boolean added = keys[i] == EMPTY;
+                keys[i] = h;
+                values[i] = value;
+                return added;
+            }
+        }
+    }
+
+    private void resize() {
+        long[] biggerKeys = new long[keys.length * 2];
+        long[] biggerValues = new long[keys.length * 2];
+
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                insert(biggerKeys, biggerValues, keys[i], values[i]);
+            }
+        }
+
+        keys = biggerKeys;
+        values = biggerValues;
+    }
+}
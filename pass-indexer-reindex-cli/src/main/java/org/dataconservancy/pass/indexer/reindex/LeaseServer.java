@@ -0,0 +1,238 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the items of a coordinator's queue to workers over HTTP, so that workers can run on
+ * any host which reaches the coordinator. Leases are taken and expire on the coordinator's clock.
+ * Workers send the outcomes of their items back, which the coordinator saves in its db.
+ *
+ * <ul>
+ * <li>POST /claim?worker=name&amp;count=n leases up to n items, where n is at least 1. The reply lists
+ * them, and says whether the run is finished: every type is listed and no item is pending or leased.</li>
+ * <li>POST /finish?worker=name with the documents of items done and the errors of items failed.
+ * Replies once the outcomes are saved. Items whose outcome could not be saved stay leased.</li>
+ * </ul>
+ *
+ * It has no authentication, so the port must not be exposed beyond the cluster network.
+ */
+public class LeaseServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseServer.class);
+
+    // Most items leased by a single claim
+    static final int MAX_CLAIM = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "lease-server");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private SqliteRunner runner;
+
+    // Time of the latest request from any worker
+    private volatile long lastContact;
+
+    // Workers seen, and those which have been told the run is finished, guarded by this
+    private final Set<String> workers = new HashSet<>();
+    private final Set<String> released = new HashSet<>();
+
+    /**
+     * @param port - Port to listen on, 0 for any free port
+     * @throws IOException
+     */
+    public LeaseServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/claim", exchange -> handle(exchange, this::claim));
+        server.createContext("/finish", exchange -> handle(exchange, this::finish));
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Start serving the queue of the given runner.
+    void start(SqliteRunner runner) {
+        this.runner = runner;
+        lastContact = System.currentTimeMillis();
+        server.start();
+        LOG.info("Leasing items to workers on port {}", getPort());
+    }
+
+    /**
+     * @return milliseconds since a worker last made a request, or since the server started
+     */
+    long idleMillis() {
+        return System.currentTimeMillis() - lastContact;
+    }
+
+    /**
+     * Wait until every worker seen has been told the run is finished, or at most the given time.
+     * Workers polling for items find out the next time they ask.
+     */
+    synchronized void awaitReleased(Duration max) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + max.toMillis();
+
+        for (long left = max.toMillis(); !released.containsAll(workers) && left > 0;
+             left = deadline - System.currentTimeMillis()) {
+            wait(left);
+        }
+    }
+
+    private JSONObject claim(String worker, Map<String, String> params, JSONObject body) {
+        int count = Math.min(Integer.parseInt(params.getOrDefault("count", "100")), MAX_CLAIM);
+
+        // A negative count must not reach the store, as sqlite takes LIMIT -1 as no limit
+        if (count < 1) {
+            throw new IllegalArgumentException("Count must be at least 1: " + count);
+        }
+
+        // Checked before claiming, so that the run is not finished while this worker holds items
+        boolean finished = runner.isFinished();
+        List<QueueStore.Entry> entries = runner.lease(count);
+
+        JSONArray items = new JSONArray();
+
+        for (QueueStore.Entry entry : entries) {
+            items.put(new JSONObject().put("id", entry.id).put("type", entry.type).put("uri", entry.uri));
+        }
+
+        if (finished) {
+            synchronized (this) {
+                released.add(worker);
+                notifyAll();
+            }
+        }
+
+        return new JSONObject().put("finished", finished && entries.isEmpty()).put("items", items);
+    }
+
+    private JSONObject finish(String worker, Map<String, String> params, JSONObject body) {
+        Map<QueueStore.Entry, String> done = new IdentityHashMap<>();
+        Map<QueueStore.Entry, String> failed = new IdentityHashMap<>();
+
+        JSONArray items = body.optJSONArray("done");
+
+        for (int i = 0; items != null && i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            done.put(entry(item), item.optString("result", null));
+        }
+
+        items = body.optJSONArray("failed");
+
+        for (int i = 0; items != null && i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            failed.put(entry(item), item.optString("error", null));
+        }
+
+        runner.saveOutcomes(done, failed);
+
+        return new JSONObject().put("saved", done.size() + failed.size());
+    }
+
+    private static QueueStore.Entry entry(JSONObject item) {
+        return new QueueStore.Entry(item.getLong("id"), item.getString("type"), item.getString("uri"));
+    }
+
+    private interface Handler {
+        JSONObject handle(String worker, Map<String, String> params, JSONObject body) throws Exception;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            String worker = params.get("worker");
+
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, new JSONObject().put("error", "Use POST"));
+            } else if (worker == null) {
+                respond(exchange, 400, new JSONObject().put("error", "Missing worker"));
+            } else {
+                lastContact = System.currentTimeMillis();
+
+                synchronized (this) {
+                    workers.add(worker);
+                }
+
+                respond(exchange, 200, handler.handle(worker, params, body(exchange)));
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            respond(exchange, 400, new JSONObject().put("error", e.getMessage()));
+        } catch (Exception e) {
+            LOG.warn("Lease request failed: " + exchange.getRequestURI(), e);
+            respond(exchange, 500, new JSONObject().put("error", e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static JSONObject body(HttpExchange exchange) throws IOException {
+        try (InputStream is = exchange.getRequestBody()) {
+            String body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+
+            return body.isEmpty() ? new JSONObject() : new JSONObject(body);
+        }
+    }
+
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<>();
+
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+
+                if (eq > 0) {
+                    params.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+                }
+            }
+        }
+
+        return params;
+    }
+
+    private static String decode(String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject reply) throws IOException {
+        byte[] body = reply.toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -4,15 +4,30 @@ import static com.openpojo.reflection.impl.PojoClassFactory.enumerateClassesByEx
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import com.openpojo.reflection.PojoClass;
+import okhttp3.OkHttpClient;
 import org.dataconservancy.pass.client.PassClient;
 import org.dataconservancy.pass.client.PassClientFactory;
 import org.dataconservancy.pass.indexer.ElasticSearchIndexer;
+import org.dataconservancy.pass.indexer.Enricher;
+import org.dataconservancy.pass.indexer.MetricsRegistry;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Compression;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Retention;
 import org.dataconservancy.pass.model.PassEntity;
 
 // Load configuration from system properties or environment variables.
@@ -60,23 +75,95 @@ public class Main {
     public static void main(String[] args) throws IOException {
         String index = get_config("PI_ES_INDEX", "http://localhost:9200/pass/");
         System.out.println("Using index " + index);
+
+        // Requests made by the indexer to Fedora and Elasticsearch are rate limited, unlimited by default.
+        RateLimiter esLimiter = new RateLimiter(Double.parseDouble(get_config("PI_REINDEX_ES_RATE", "0")));
+        RateLimiter fedoraLimiter = new RateLimiter(Double.parseDouble(get_config("PI_REINDEX_FEDORA_RATE", "0")));
+        OkHttpClient base = ElasticSearchIndexer.default_client();
+        OkHttpClient http = base.newBuilder().addInterceptor(new ThrottlingInterceptor(index, esLimiter, fedoraLimiter))
+                                .build();
+
+        if (Boolean.parseBoolean(get_config("PI_REINDEX_ES_FEEDBACK", "false"))) {
+            if (esLimiter.getRate() <= 0) {
+                throw new RuntimeException("PI_REINDEX_ES_FEEDBACK requires PI_REINDEX_ES_RATE to be set");
+            }
+
+            EsLoadMonitor monitor = new EsLoadMonitor(index, base, esLimiter,
+                                                      Integer.parseInt(get_config("PI_REINDEX_ES_QUEUE_LIMIT", "50")));
+            monitor.start(Long.parseLong(get_config("PI_REINDEX_ES_FEEDBACK_SECONDS", "5")), TimeUnit.SECONDS);
+        }
+
+        // With a cached field plan, the index configuration is checked in the background
+        String fieldPlanCache = get_config("PI_ES_FIELD_PLAN_CACHE", null);
+
         ElasticSearchIndexer es = new ElasticSearchIndexer(
             index,
             get_config("PI_ES_CONFIG",
                        "https://raw.githubusercontent.com/OA-PASS/pass-data-model/master/src/main/resources/esconfig" +
                        "-3.5.json"),
-            get_config("PI_FEDORA_USER", "fedoraAdmin"), get_config("PI_FEDORA_PASS", "moo"));
+            get_config("PI_FEDORA_USER", "fedoraAdmin"), get_config("PI_FEDORA_PASS", "moo"), http,
+            fieldPlanCache == null ? null : Paths.get(fieldPlanCache),
+            Boolean.parseBoolean(get_config("PI_ES_FAIL_FAST", "true")));
+
+        es.set_dropped_field_metrics(new MetricsRegistry(),
+                                     1000 * Long.parseLong(get_config("PI_ES_DROPPED_SUMMARY_SECONDS", "60")));
+
+        // With external versioning, documents indexed meanwhile by the service are not overwritten
+        // with older versions
+        es.set_external_versioning(Boolean.parseBoolean(get_config("PI_ES_EXTERNAL_VERSIONING", "false")));
+
+        // Enrichment during a reindex is only refreshed by the cache expiring, as no events are seen.
+        String enrichLinks = get_config("PI_ES_ENRICH_LINKS", null);
+
+        if (enrichLinks != null) {
+            es.set_enricher(new Enricher(es, Enricher.parse_links(enrichLinks),
+                                         Integer.parseInt(get_config("PI_ES_ENRICH_CACHE_SIZE", "10000")),
+                                         1000 * Long.parseLong(get_config("PI_ES_ENRICH_CACHE_SECONDS", "300")),
+                                         new MetricsRegistry()));
+        }
+
+        int threads = Integer.parseInt(get_config("PI_REINDEX_THREADS", "4"));
+
+        String mode = get_config("PI_REINDEX_MODE", "reindex");
+
+        if (mode.equals("restore")) {
+            restore(es, args, threads, Integer.parseInt(get_config("PI_REINDEX_BULK_SIZE", "500")));
+            return;
+        }
 
         PassClient client = PassClientFactory.getPassClient();
 
-        Function<Class<? extends PassEntity>, Stream<URI>> lister = entityType -> {
-            ResultStager stager = new ResultStager();
-            client.processAllEntities(stager, entityType);
-            return stager.entries();
+        BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister = (entityType, sink) -> {
+            client.processAllEntities(sink, entityType);
         };
 
+        if (mode.equals("check")) {
+            check(new ConsistencyChecker(es, http, index, lister, PASS_TYPES), threads,
+                  Integer.parseInt(get_config("PI_REINDEX_BULK_SIZE", "500")));
+            return;
+        }
+
+        // In incremental mode, resources not modified since the checkpoint are skipped. Listings
+        // only give URIs, so Fedora is asked for the last modified time of each.
+        Instant since = getSince();
+        AtomicLong skipped = new AtomicLong();
+
+        if (since != null) {
+            System.out.println("Only indexing resources modified since " + since);
+        }
+
         Function<URI, String> task = uri -> {
             try {
+                if (since != null) {
+                    long modified = es.get_fedora_last_modified(uri.toString());
+
+                    // Last-Modified is only accurate to the second
+                    if (modified >= 0 && modified < since.truncatedTo(ChronoUnit.SECONDS).toEpochMilli()) {
+                        skipped.incrementAndGet();
+                        return null;
+                    }
+                }
+
                 return es.update_document(uri.toString());
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -84,23 +171,183 @@ public class Main {
 
         };
 
-        try (SqliteRunner runner = getRunner(args)) {
-            runner.process(lister, task);
+        // A coordinator lists types into the db and leases the items to workers over HTTP, which may
+        // run on any host reaching it. Standalone, a single process does both.
+        String role = get_config("PI_REINDEX_ROLE", "standalone");
+        Duration workerTimeout = Duration.ofSeconds(Long.parseLong(get_config("PI_REINDEX_WORKER_TIMEOUT_SECONDS",
+                                                                              "600")));
+
+        if (role.equals("worker")) {
+            if (args.length != 0) {
+                throw new RuntimeException("A worker takes no cli args, it is given PI_REINDEX_COORDINATOR_URL");
+            }
+
+            RemoteWorker worker = new RemoteWorker(get_config("PI_REINDEX_COORDINATOR_URL"),
+                                                   ElasticSearchIndexer.default_client());
+            worker.setThreads(threads);
+            worker.setRetention(getResultCodec().getRetention());
+            worker.setTimeout(workerTimeout);
+            worker.work(task);
+        } else {
+            try (SqliteRunner runner = getRunner(args)) {
+                runner.setThreads(threads);
+                runner.setListers(Integer.parseInt(get_config("PI_REINDEX_LISTERS", "1")));
+                runner.setLease(Duration.ofSeconds(Long.parseLong(get_config("PI_REINDEX_LEASE_SECONDS", "600"))));
+                runner.setResultCodec(getResultCodec());
+                runner.setProgressInterval(
+                    Duration.ofSeconds(Long.parseLong(get_config("PI_REINDEX_PROGRESS_SECONDS", "60"))));
+                runner.setWorkerTimeout(workerTimeout);
+
+                String metricsFile = get_config("PI_REINDEX_METRICS_FILE", null);
 
-            while (runner.errorCount() > 0) {
-                int prev = runner.errorCount();
-                runner.clearErrors();
-                runner.process(lister, task);
+                if (metricsFile != null) {
+                    runner.setMetricsFile(Paths.get(metricsFile));
+                }
 
-                if (runner.errorCount() >= prev) {
-                    throw new RuntimeException(String.format("Cannot recover from %d errors", prev));
+                // The mapped queue lives in a directory next to the db, and only serves the process owning it
+                if (get_config("PI_REINDEX_QUEUE", "sqlite").equals("mapped")) {
+                    runner.setQueueStore(new MappedQueueStore(Paths.get(runner.getFilePath() + ".queue")));
                 }
+
+                if (role.equals("coordinator")) {
+                    // Retry the failures of an earlier run over the db
+                    runner.clearErrors();
+
+                    try (LeaseServer server = new LeaseServer(
+                        Integer.parseInt(get_config("PI_REINDEX_COORDINATOR_PORT", "8089")))) {
+                        System.out.println("Coordinating workers on port " + server.getPort() + " with db " +
+                                           runner.getFilePath());
+                        runner.coordinate(lister, server);
+                    }
+
+                    if (runner.errorCount() > 0) {
+                        throw new RuntimeException(String.format("Finished with %d errors, run again to retry",
+                                                                 runner.errorCount()));
+                    }
+                } else {
+                    runner.process(lister, task);
+
+                    while (runner.errorCount() > 0) {
+                        int prev = runner.errorCount();
+                        runner.clearErrors();
+                        runner.process(lister, task);
+
+                        if (runner.errorCount() >= prev) {
+                            throw new RuntimeException(String.format("Cannot recover from %d errors", prev));
+                        }
+                    }
+                }
+
+                runner.saveCheckpoint();
+                System.out.println("Saved checkpoint " + runner.getCheckpoint() + " in " + runner.getFilePath());
             }
         }
 
+        if (since != null) {
+            System.out.println("Skipped " + skipped.get() + " unchanged resources");
+        }
+
+        es.log_dropped_fields();
+
+        if (es.get_stale_writes() > 0) {
+            System.out.println("Kept " + es.get_stale_writes() + " documents indexed meanwhile with newer versions");
+        }
+
         System.out.println("Finished OK!");
     }
 
+    // Compare the index with Fedora, repairing differences if asked to.
+    private static void check(ConsistencyChecker checker, int threads, int bulkSize) throws IOException {
+        boolean repair = Boolean.parseBoolean(get_config("PI_REINDEX_REPAIR", "false"));
+
+        checker.setThreads(threads);
+        checker.setBulkSize(bulkSize);
+        checker.setBuckets(Integer.parseInt(get_config("PI_REINDEX_CHECK_BUCKETS", "4096")));
+
+        ConsistencyChecker.Report report = checker.check(repair);
+
+        report.getMissing().forEach(uri -> System.out.println("Missing " + uri));
+        report.getStale().forEach(uri -> System.out.println("Stale " + uri));
+        report.getOrphaned().forEach(id -> System.out.println("Orphaned " + id));
+        System.out.println((repair ? "Repaired: " : "Found: ") + report);
+
+        if (report.getErrors() > 0) {
+            throw new RuntimeException(String.format("Check had %d errors", report.getErrors()));
+        }
+    }
+
+    // Time before which unmodified resources are skipped, given as an ISO-8601 instant or as a db
+    // written by an earlier run whose checkpoint is used. Null if everything is to be indexed.
+    private static Instant getSince() {
+        String since = get_config("PI_REINDEX_SINCE", null);
+
+        if (since == null) {
+            return null;
+        }
+
+        try {
+            return Instant.parse(since);
+        } catch (DateTimeParseException e) {
+            if (!Files.isRegularFile(Paths.get(since))) {
+                throw new RuntimeException("PI_REINDEX_SINCE is neither an instant nor a db file: " + since);
+            }
+        }
+
+        try (SqliteRunner previous = new SqliteRunner(since)) {
+            Instant checkpoint = previous.getCheckpoint();
+
+            if (checkpoint == null) {
+                throw new RuntimeException("The run which wrote " + since + " did not finish, it has no checkpoint");
+            }
+
+            return checkpoint;
+        }
+    }
+
+    // What is kept of each indexed document in the db. By default documents are kept in full, deflated.
+    private static ResultCodec getResultCodec() throws IOException {
+        Retention retention = Retention.valueOf(get_config("PI_REINDEX_RETENTION", "full").toUpperCase());
+        Compression compression = Compression.valueOf(get_config("PI_REINDEX_COMPRESSION", "deflate").toUpperCase());
+        String dictionary = get_config("PI_REINDEX_DICTIONARY", null);
+
+        return new ResultCodec(retention, compression,
+                               dictionary == null ? null : Files.readAllBytes(Paths.get(dictionary)));
+    }
+
+    // Write the documents saved in an existing db straight to the index. Fedora is not contacted.
+    private static void restore(ElasticSearchIndexer es, String[] args, int threads, int bulkSize) {
+        if (args.length != 1) {
+            throw new RuntimeException("Restoring requires the db file as the cli arg");
+        }
+
+        BlockingExecutor exe = new BlockingExecutor(threads);
+        AtomicInteger failures = new AtomicInteger();
+        int count;
+
+        try (SqliteRunner runner = new SqliteRunner(args[0])) {
+            count = runner.restore(bulkSize, docs -> {
+                exe.execute(() -> {
+                    try {
+                        es.index_documents(docs);
+                    } catch (IOException e) {
+                        failures.addAndGet(docs.size());
+                        throw new RuntimeException(e);
+                    }
+                });
+            });
+
+            exe.awaitDone();
+        } finally {
+            exe.shutdown();
+        }
+
+        if (failures.get() > 0) {
+            throw new RuntimeException(String.format("Could not restore %d of %d documents", failures.get(), count));
+        }
+
+        System.out.println("Restored " + count + " documents");
+    }
+
     private static SqliteRunner getRunner(String[] args) {
         if (args.length == 0) {
             return new SqliteRunner(PASS_TYPES);
@@ -0,0 +1,626 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the queue in a directory of memory mapped files, for runs too large for the B-tree
+ * updates of the queue in the db to keep up. Items are appended to a log of fixed size segments
+ * and the id of an item is its position in the log. The state of each item, pending, running,
+ * done or failed, takes two bits of a bitmap, so claiming and finishing an item only flips bits.
+ *
+ * Each chunk of enqueued items is forced to disk before enqueue returns. Records carry a
+ * checksum, so on opening, a log cut short by a crash is truncated after its last whole record,
+ * and items which were running are pending again. The bitmap is forced to disk on close only, so
+ * after a crash of the host some items may be processed again, but none are lost. If more than
+ * half of the items are done on opening, the rest are copied to a new log which replaces the old.
+ *
+ * Leases are only kept in memory, so the store cannot be shared by several processes.
+ */
+public class MappedQueueStore implements QueueStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedQueueStore.class);
+
+    static final int SEGMENT_SIZE = 64 << 20;
+
+    // Bytes of the bitmap mapped at a time, each holding the state of four items
+    static final int STATE_REGION_SIZE = 1 << 20;
+
+    // Logs with fewer items are not worth compacting
+    static final long COMPACT_MIN_ITEMS = 100_000;
+
+    static final int PENDING = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int FAILED = 3;
+
+    // A record is the length of its payload, the CRC32 of the payload, then the payload: the
+    // length of the type, the type and the URI. The length is written last.
+    private static final int HEADER_SIZE = 8;
+
+    // Written in place of a length when the next record did not fit in the segment
+    private static final int END_OF_SEGMENT = -1;
+
+    private static final String STATE_FILE = "state.bits";
+
+    private final Path dir;
+    private final int segmentSize;
+
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private FileChannel stateChannel;
+
+    // Number of items in the log, and where the next one is appended in the last segment
+    private long size;
+    private int tailOffset;
+
+    // Counts of each type: pending or running, failed, done
+    private final Map<String, long[]> counts = new HashMap<>();
+    private long doneCount;
+
+    private Position cursor = new Position();
+    private final Map<Long, Lease> leases = new LinkedHashMap<>();
+    private final Deque<Entry> returned = new ArrayDeque<>();
+
+    public MappedQueueStore(Path dir) {
+        this(dir, SEGMENT_SIZE, COMPACT_MIN_ITEMS);
+    }
+
+    MappedQueueStore(Path dir, int segmentSize, long compactMinItems) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+
+        try {
+            finishCompaction();
+            open();
+
+            if (size >= compactMinItems && doneCount * 2 > size) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open queue in " + dir, e);
+        }
+    }
+
+    private static class Position {
+        long id;
+        int segment;
+        int offset;
+    }
+
+    private static class Lease {
+        final long expires;
+        final Entry entry;
+
+        Lease(long expires, Entry entry) {
+            this.expires = expires;
+            this.entry = entry;
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(dir);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(f -> f.getFileName().toString().startsWith("segment-"))
+                                  .sorted(Comparator.comparing(Path::toString)).collect(Collectors.toList())) {
+                segments.add(map(file, 0, segmentSize));
+            }
+        }
+
+        stateChannel = FileChannel.open(dir.resolve(STATE_FILE), StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        for (long mapped = 0; mapped < stateChannel.size(); mapped += STATE_REGION_SIZE) {
+            region(mapped * 4);
+        }
+
+        recover();
+    }
+
+    // Count the items in the log, truncating it at the first record which is not whole. The log
+    // ends cleanly at the first zero length of the last segment.
+    private void recover() throws IOException {
+        Position p = new Position();
+
+        while (p.segment < segments.size()) {
+            MappedByteBuffer segment = segments.get(p.segment);
+
+            if (p.offset + HEADER_SIZE > segmentSize || segment.getInt(p.offset) == END_OF_SEGMENT) {
+                if (p.segment == segments.size() - 1) {
+                    p.offset = segmentSize;
+                    break;
+                }
+
+                p.segment++;
+                p.offset = 0;
+                continue;
+            }
+
+            // The length of a record is written last, so the rest of the log is still zero
+            if (segment.getInt(p.offset) == 0 && p.segment == segments.size() - 1) {
+                break;
+            }
+
+            if (!isWhole(segment, p.offset)) {
+                truncate(p);
+                break;
+            }
+
+            // Leases do not survive the process
+            int state = state(p.id);
+
+            if (state == RUNNING) {
+                state = PENDING;
+                setState(p.id, state);
+            }
+
+            long[] c = counts.computeIfAbsent(readType(segment, p.offset), t -> new long[3]);
+            c[state == PENDING ? 0 : state == FAILED ? 1 : 2]++;
+            doneCount += state == DONE ? 1 : 0;
+
+            p.offset += HEADER_SIZE + segment.getInt(p.offset);
+            p.id++;
+        }
+
+        size = p.id;
+        tailOffset = p.offset;
+
+        // Items past the end of the log are pending once appended
+        for (long id = size; id % 4 != 0; id++) {
+            setState(id, PENDING);
+        }
+
+        for (long i = (size + 3) / 4; i < (long) regions.size() * STATE_REGION_SIZE; i++) {
+            MappedByteBuffer region = regions.get((int) (i / STATE_REGION_SIZE));
+
+            if (region.get((int) (i % STATE_REGION_SIZE)) != 0) {
+                region.put((int) (i % STATE_REGION_SIZE), (byte) 0);
+            }
+        }
+    }
+
+    private boolean isWhole(MappedByteBuffer segment, int offset) {
+        int length = segment.getInt(offset);
+
+        if (length <= 0 || length > segmentSize - offset - HEADER_SIZE
+            || (segment.get(offset + HEADER_SIZE) & 0xff) >= length) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(slice(segment, offset + HEADER_SIZE, length));
+
+        return (int) crc.getValue() == segment.getInt(offset + 4);
+    }
+
+    private void truncate(Position p) throws IOException {
+        LOG.warn("Truncating queue log {} after {} items, at offset {} of segment {}", dir, p.id, p.offset,
+                 p.segment);
+
+        MappedByteBuffer segment = segments.get(p.segment);
+
+        for (int i = p.offset; i < segmentSize; i++) {
+            segment.put(i, (byte) 0);
+        }
+
+        segment.force();
+
+        while (segments.size() > p.segment + 1) {
+            segments.remove(segments.size() - 1);
+            Files.delete(segmentPath(segments.size()));
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("segment-%05d.log", segment));
+    }
+
+    private MappedByteBuffer map(Path file, long position, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+        }
+    }
+
+    private static ByteBuffer slice(MappedByteBuffer segment, int offset, int length) {
+        ByteBuffer slice = segment.duplicate();
+        slice.position(offset).limit(offset + length);
+        return slice;
+    }
+
+    private MappedByteBuffer region(long id) {
+        int index = (int) (id / 4 / STATE_REGION_SIZE);
+
+        try {
+            while (regions.size() <= index) {
+                regions.add(stateChannel.map(FileChannel.MapMode.READ_WRITE,
+                                             (long) regions.size() * STATE_REGION_SIZE, STATE_REGION_SIZE));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map queue state in " + dir, e);
+        }
+
+        return regions.get(index);
+    }
+
+    private int state(long id) {
+        return region(id).get((int) (id / 4 % STATE_REGION_SIZE)) >>> (id % 4 * 2) & 3;
+    }
+
+    private void setState(long id, int state) {
+        MappedByteBuffer region = region(id);
+        int index = (int) (id / 4 % STATE_REGION_SIZE);
+        int shift = (int) (id % 4 * 2);
+
+        region.put(index, (byte) (region.get(index) & ~(3 << shift) | state << shift));
+    }
+
+    private long append(String type, String uri, int state) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        byte[] uriBytes = uri.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + typeBytes.length + uriBytes.length;
+
+        if (typeBytes.length > 255 || HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("Item too large for the queue: " + type + " " + uri);
+        }
+
+        if (segments.isEmpty() || tailOffset + HEADER_SIZE + length > segmentSize) {
+            if (!segments.isEmpty() && tailOffset + 4 <= segmentSize) {
+                segments.get(segments.size() - 1).putInt(tailOffset, END_OF_SEGMENT);
+            }
+
+            try {
+                segments.add(map(segmentPath(segments.size()), 0, segmentSize));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not add a segment to queue log " + dir, e);
+            }
+
+            tailOffset = 0;
+        }
+
+        MappedByteBuffer segment = segments.get(segments.size() - 1);
+        ByteBuffer payload = slice(segment, tailOffset + HEADER_SIZE, length);
+        payload.put((byte) typeBytes.length).put(typeBytes).put(uriBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(slice(segment, tailOffset + HEADER_SIZE, length));
+        segment.putInt(tailOffset + 4, (int) crc.getValue());
+        segment.putInt(tailOffset, length);
+
+        tailOffset += HEADER_SIZE + length;
+
+        long id = size++;
+        setState(id, state);
+
+        long[] c = counts.computeIfAbsent(type, t -> new long[3]);
+        c[state == FAILED ? 1 : 0]++;
+
+        return id;
+    }
+
+    // Move the position to the next record, returning false at the end of the log.
+    private boolean seek(Position p) {
+        while (p.id < size) {
+            if (p.offset + HEADER_SIZE <= segmentSize
+                && segments.get(p.segment).getInt(p.offset) != END_OF_SEGMENT) {
+                return true;
+            }
+
+            p.segment++;
+            p.offset = 0;
+        }
+
+        return false;
+    }
+
+    private void skip(Position p) {
+        p.offset += HEADER_SIZE + segments.get(p.segment).getInt(p.offset);
+        p.id++;
+    }
+
+    private Entry read(Position p) {
+        MappedByteBuffer segment = segments.get(p.segment);
+        int typeLength = segment.get(p.offset + HEADER_SIZE) & 0xff;
+        byte[] payload = new byte[segment.getInt(p.offset) - 1];
+        slice(segment, p.offset + HEADER_SIZE + 1, payload.length).get(payload);
+
+        Entry entry = new Entry(p.id, new String(payload, 0, typeLength, StandardCharsets.UTF_8),
+                                new String(payload, typeLength, payload.length - typeLength, StandardCharsets.UTF_8));
+        skip(p);
+
+        return entry;
+    }
+
+    private static String readType(MappedByteBuffer segment, int offset) {
+        byte[] type = new byte[segment.get(offset + HEADER_SIZE) & 0xff];
+        slice(segment, offset + HEADER_SIZE + 1, type.length).get(type);
+
+        return new String(type, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void enqueue(String type, List<String> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+
+        int first = Math.max(0, segments.size() - 1);
+
+        for (String uri : uris) {
+            append(type, uri, PENDING);
+        }
+
+        // Items only count as enqueued once on disk
+        for (int i = first; i < segments.size(); i++) {
+            segments.get(i).force();
+        }
+    }
+
+    @Override
+    public synchronized void forEachQueued(String type, Consumer<String> consumer) {
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        byte[] recordType = new byte[typeBytes.length];
+        Position p = new Position();
+
+        while (seek(p)) {
+            MappedByteBuffer segment = segments.get(p.segment);
+
+            // Compare types in place, only reading the URI of a match
+            if (state(p.id) == DONE || (segment.get(p.offset + HEADER_SIZE) & 0xff) != typeBytes.length) {
+                skip(p);
+                continue;
+            }
+
+            slice(segment, p.offset + HEADER_SIZE + 1, typeBytes.length).get(recordType);
+
+            if (Arrays.equals(recordType, typeBytes)) {
+                consumer.accept(read(p).uri);
+            } else {
+                skip(p);
+            }
+        }
+    }
+
+    /**
+     * Items are kept, as listing the type again skips those in the queue already.
+     */
+    @Override
+    public void abandon(String type) {
+    }
+
+    @Override
+    public synchronized List<Entry> claim(int count, long leaseExpires) {
+        List<Entry> claimed = new ArrayList<>(count);
+
+        // Items whose lease expired go first, those since finished are dropped
+        while (claimed.size() < count && !returned.isEmpty()) {
+            Entry entry = returned.poll();
+
+            if (state(entry.id) == PENDING) {
+                lease(entry, leaseExpires, claimed);
+            }
+        }
+
+        while (claimed.size() < count && seek(cursor)) {
+            if (state(cursor.id) == PENDING) {
+                lease(read(cursor), leaseExpires, claimed);
+            } else {
+                skip(cursor);
+            }
+        }
+
+        return claimed;
+    }
+
+    private void lease(Entry entry, long expires, List<Entry> claimed) {
+        setState(entry.id, RUNNING);
+        leases.put(entry.id, new Lease(expires, entry));
+        claimed.add(entry);
+    }
+
+    @Override
+    public synchronized int releaseExpired(long expiredBefore) {
+        int released = 0;
+
+        for (Iterator<Lease> i = leases.values().iterator(); i.hasNext(); ) {
+            Lease lease = i.next();
+
+            if (lease.expires < expiredBefore) {
+                i.remove();
+                setState(lease.entry.id, PENDING);
+                returned.add(lease.entry);
+                released++;
+            }
+        }
+
+        return released;
+    }
+
+    @Override
+    public synchronized void finish(List<Entry> done, List<Entry> failed) {
+        done.forEach(e -> finish(e, DONE));
+        failed.forEach(e -> finish(e, FAILED));
+    }
+
+    private void finish(Entry entry, int state) {
+        leases.remove(entry.id);
+
+        int previous = state(entry.id);
+
+        if (previous == DONE || previous == FAILED) {
+            return;
+        }
+
+        setState(entry.id, state);
+
+        long[] c = counts.computeIfAbsent(entry.type, t -> new long[3]);
+        c[0]--;
+        c[state == FAILED ? 1 : 2]++;
+        doneCount += state == DONE ? 1 : 0;
+    }
+
+    @Override
+    public synchronized long remainingCount() {
+        return counts.values().stream().mapToLong(c -> c[0]).sum();
+    }
+
+    @Override
+    public synchronized long leasedCount() {
+        return leases.size();
+    }
+
+    @Override
+    public synchronized long failedCount() {
+        return counts.values().stream().mapToLong(c -> c[1]).sum();
+    }
+
+    @Override
+    public synchronized void retryFailed() {
+        Position p = new Position();
+
+        while (seek(p)) {
+            if (state(p.id) == FAILED) {
+                setState(p.id, PENDING);
+
+                long[] c = counts.get(readType(segments.get(p.segment), p.offset));
+                c[1]--;
+                c[0]++;
+            }
+
+            skip(p);
+        }
+
+        // Look for pending items from the start again
+        cursor = new Position();
+    }
+
+    @Override
+    public synchronized Map<String, long[]> counts() {
+        Map<String, long[]> queued = new HashMap<>();
+
+        counts.forEach((type, c) -> {
+            if (c[0] + c[1] > 0) {
+                queued.put(type, new long[] {c[0], c[1]});
+            }
+        });
+
+        return queued;
+    }
+
+    // Copy the items not done to a new log, which then replaces this one.
+    private void compact() throws IOException {
+        LOG.info("Compacting queue log {}, {} of {} items are done", dir, doneCount, size);
+
+        Path copy = sibling(".compact");
+        deleteRecursively(copy);
+
+        try (MappedQueueStore compacted = new MappedQueueStore(copy, segmentSize, Long.MAX_VALUE)) {
+            Position p = new Position();
+
+            while (seek(p)) {
+                int state = state(p.id);
+
+                if (state == DONE) {
+                    skip(p);
+                } else {
+                    Entry entry = read(p);
+                    compacted.append(entry.type, entry.uri, state);
+                }
+            }
+        }
+
+        close();
+
+        Path old = sibling(".old");
+        Files.move(dir, old, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(copy, dir, StandardCopyOption.ATOMIC_MOVE);
+        deleteRecursively(old);
+
+        open();
+    }
+
+    // Complete a compaction the process stopped in the middle of.
+    private void finishCompaction() throws IOException {
+        Path copy = sibling(".compact");
+
+        if (Files.exists(copy)) {
+            if (Files.exists(dir)) {
+                // Stopped while copying, start over
+                deleteRecursively(copy);
+            } else {
+                // Stopped after moving the old log aside
+                Files.move(copy, dir, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        deleteRecursively(sibling(".old"));
+    }
+
+    private Path sibling(String suffix) {
+        return dir.resolveSibling(dir.getFileName() + suffix);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Force the log and the bitmap to disk.
+     */
+    @Override
+    public synchronized void close() {
+        segments.forEach(MappedByteBuffer::force);
+        regions.forEach(MappedByteBuffer::force);
+        segments.clear();
+        regions.clear();
+        counts.clear();
+        leases.clear();
+        returned.clear();
+        size = 0;
+        doneCount = 0;
+        cursor = new Position();
+
+        if (stateChannel != null) {
+            try {
+                stateChannel.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not close queue state in " + dir, e);
+            }
+
+            stateChannel = null;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reports the progress of a reindex run: per type, the items done, failed and still pending,
+ * the rolling rate at which items are processed and an estimate of the time remaining. A status
+ * line is logged periodically and, if a metrics file is set, the same figures are written to it
+ * as JSON. The file is replaced atomically, so it can be read at any time.
+ *
+ * Pending and failed items are counted from the queue tables and items done from the results,
+ * so the figures of a coordinator cover all of its workers. While types are still being listed the
+ * total is not yet known, so the estimate is a lower bound.
+ */
+public class ProgressReporter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProgressReporter.class);
+
+    // Period over which the rate of processing is measured
+    static final Duration RATE_WINDOW = Duration.ofMinutes(5);
+
+    /**
+     * Counts for a single type, as read from the db.
+     */
+    static class TypeCounts {
+        long done;
+        long failed;
+        long pending;
+        boolean listed;
+    }
+
+    private final Supplier<Map<String, TypeCounts>> queue;
+    private final Path metricsFile;
+    private final long start = System.nanoTime();
+    private final Deque<long[]> samples = new ArrayDeque<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "progress-reporter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param queue reads the counts of each type from the db
+     * @param metricsFile file to write metrics to, may be null
+     */
+    ProgressReporter(Supplier<Map<String, TypeCounts>> queue, Path metricsFile) {
+        this.queue = queue;
+        this.metricsFile = metricsFile;
+        samples.add(new long[] {start, processed(queue.get())});
+    }
+
+    void start(Duration period) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                report();
+            } catch (Exception e) {
+                LOG.warn("Could not report progress", e);
+            }
+        }, period.toMillis(), period.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static long processed(Map<String, TypeCounts> counts) {
+        return counts.values().stream().mapToLong(c -> c.done + c.failed).sum();
+    }
+
+    /**
+     * Log the current progress and write the metrics file.
+     *
+     * @return the metrics written
+     */
+    synchronized JSONObject report() {
+        Map<String, TypeCounts> counts = new TreeMap<>(queue.get());
+        long now = System.nanoTime();
+        long processed = processed(counts);
+
+        // Rolling rate over the samples taken within the window
+        samples.add(new long[] {now, processed});
+
+        while (samples.size() > 2 && now - samples.peekFirst()[0] > RATE_WINDOW.toNanos()) {
+            samples.removeFirst();
+        }
+
+        long[] first = samples.peekFirst();
+        double seconds = (now - first[0]) / 1e9;
+        double rate = seconds > 0 ? Math.max(0, processed - first[1]) / seconds : 0;
+
+        long totalDone = 0;
+        long totalFailed = 0;
+        long totalPending = 0;
+        int unlisted = 0;
+        JSONObject types = new JSONObject();
+
+        for (Map.Entry<String, TypeCounts> e : counts.entrySet()) {
+            TypeCounts c = e.getValue();
+            totalDone += c.done;
+            totalFailed += c.failed;
+            totalPending += c.pending;
+            unlisted += c.listed ? 0 : 1;
+
+            types.put(e.getKey(), new JSONObject().put("done", c.done).put("failed", c.failed)
+                                                  .put("pending", c.pending)
+                                                  .put("total", c.done + c.failed + c.pending)
+                                                  .put("listed", c.listed));
+        }
+
+        long total = totalDone + totalFailed + totalPending;
+        Long eta = rate > 0 ? Long.valueOf((long) Math.ceil(totalPending / rate))
+            : totalPending == 0 && unlisted == 0 ? Long.valueOf(0) : null;
+
+        JSONObject metrics = new JSONObject().put("timestamp", Instant.now().toString())
+                                             .put("elapsed_seconds", (now - start) / 1_000_000_000L)
+                                             .put("done", totalDone).put("failed", totalFailed)
+                                             .put("pending", totalPending).put("total", total)
+                                             .put("types_listing", unlisted)
+                                             .put("items_per_second", Math.round(rate * 10) / 10.0)
+                                             .put("eta_seconds", eta == null ? JSONObject.NULL : eta)
+                                             .put("types", types);
+
+        LOG.info("Progress: {}% ({} of {} done, {} failed, {} pending), {} items/s, ETA {}{}",
+                 total == 0 ? 0 : Math.round(1000.0 * (totalDone + totalFailed) / total) / 10.0, totalDone, total,
+                 totalFailed, totalPending, metrics.get("items_per_second"),
+                 eta == null ? "unknown" : formatDuration(eta), unlisted > 0 ? ", " + unlisted + " types to list" : "");
+
+        if (metricsFile != null) {
+            write(metrics);
+        }
+
+        return metrics;
+    }
+
+    private void write(JSONObject metrics) {
+        Path tmp = metricsFile.resolveSibling(metricsFile.getFileName() + ".tmp");
+
+        try {
+            Files.write(tmp, metrics.toString(2).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, metricsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not write metrics file {}", metricsFile, e);
+        }
+    }
+
+    static String formatDuration(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    /**
+     * Stop reporting, after a final report.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        report();
+    }
+}
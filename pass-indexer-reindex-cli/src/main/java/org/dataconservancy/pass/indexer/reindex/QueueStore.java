@@ -0,0 +1,108 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the items of a reindex run and their state: pending, leased to a worker, or failed. Items
+ * which are done are no longer considered part of the queue. Implementations must be thread safe.
+ *
+ * The types being listed, the results of items and anything else about a run are kept by
+ * SqliteRunner in its db. A store keeping its queue in that db moves items out in the same
+ * transaction which saves their results. For any other store the two steps are not atomic, so an
+ * item may be processed again if the process stops in between, and its result is then not saved
+ * twice.
+ */
+public interface QueueStore extends AutoCloseable {
+
+    /**
+     * An item taken from the queue.
+     */
+    final class Entry {
+        public final long id;
+        public final String type;
+        public final String uri;
+
+        public Entry(long id, String type, String uri) {
+            this.id = id;
+            this.type = type;
+            this.uri = uri;
+        }
+    }
+
+    /**
+     * Add pending items of a type, all at once.
+     */
+    void enqueue(String type, List<String> uris);
+
+    /**
+     * Give the URI of every item of the type which is pending, leased or failed to the consumer.
+     */
+    void forEachQueued(String type, Consumer<String> consumer);
+
+    /**
+     * Called when listing a type failed part way. The pending items of the type may be dropped,
+     * or kept, in which case listing the type again must not enqueue them twice.
+     */
+    void abandon(String type);
+
+    /**
+     * Lease up to count pending items until the given time.
+     */
+    List<Entry> claim(int count, long leaseExpires);
+
+    /**
+     * Put leased items whose lease expired before the given time back in the queue.
+     *
+     * @return number of items released
+     */
+    int releaseExpired(long expiredBefore);
+
+    /**
+     * Remove items which were processed from the queue, keeping failures for retrying later.
+     */
+    void finish(List<Entry> done, List<Entry> failed);
+
+    /**
+     * Remove items which were processed from the queue within the transaction of the given
+     * connection to the db of the runner, which commits it along with their results. Only a store
+     * keeping its queue in that db can do so.
+     *
+     * @return false, having done nothing, if the store does not keep its queue in the db
+     * @throws SQLException if the items could not be removed and the transaction must be rolled back
+     */
+    default boolean finish(Connection conn, List<Entry> done, List<Entry> failed) throws SQLException {
+        return false;
+    }
+
+    /**
+     * @return number of items pending or leased
+     */
+    long remainingCount();
+
+    /**
+     * @return number of items which are leased
+     */
+    long leasedCount();
+
+    /**
+     * @return number of items which failed
+     */
+    long failedCount();
+
+    /**
+     * Put every failed item back in the queue.
+     */
+    void retryFailed();
+
+    /**
+     * @return for each type with items in the queue, the number pending or leased and the number failed
+     */
+    Map<String, long[]> counts();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,75 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket handing out permits at a steady rate, allowing bursts of up to one second worth
+ * of permits after a quiet period. A rate of zero or less means no limit. The rate may be changed
+ * while permits are being acquired.
+ */
+public class RateLimiter {
+
+    private double rate;
+    private double tokens;
+    private long last;
+
+    /**
+     * @param rate permits per second
+     */
+    public RateLimiter(double rate) {
+        this.rate = rate;
+        this.tokens = burst();
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Block until a permit is available. Callers waiting at the same time are served in turn,
+     * each reserving the next permit before sleeping.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+
+        synchronized (this) {
+            if (rate <= 0) {
+                return;
+            }
+
+            refill();
+            tokens -= 1;
+
+            if (tokens >= 0) {
+                return;
+            }
+
+            wait = (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(double rate) {
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, burst());
+    }
+
+    private double burst() {
+        return Math.max(1, rate);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+
+        if (rate > 0) {
+            tokens = Math.min(burst(), tokens + (now - last) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        last = now;
+    }
+}
@@ -0,0 +1,220 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Retention;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes items leased from a coordinator over HTTP, sending their outcomes back to be saved in
+ * the coordinator's db. Any number of workers on any hosts may serve one coordinator. A worker
+ * keeps asking for items until the coordinator says the run is finished, so it stays to pick up
+ * items of other workers whose leases expired. See LeaseServer.
+ */
+public class RemoteWorker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RemoteWorker.class);
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // Distinguishes workers running in the same process
+    private static final AtomicInteger WORKER_COUNT = new AtomicInteger();
+
+    private final HttpUrl coordinator;
+    private final OkHttpClient client;
+    private final String name;
+
+    private int threads = 4;
+    private Retention retention = Retention.FULL;
+    private Duration timeout = Duration.ofMinutes(10);
+
+    // Outcomes of processed items not yet sent to the coordinator
+    private final Queue<JSONObject> done = new ConcurrentLinkedQueue<>();
+    private final Queue<JSONObject> failed = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong doneCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param coordinator URL of the lease server of the coordinator
+     * @param client used for requests to the coordinator
+     */
+    public RemoteWorker(String coordinator, OkHttpClient client) {
+        this.coordinator = HttpUrl.get(coordinator);
+        this.client = client;
+        this.name = ManagementFactory.getRuntimeMXBean().getName() + "-" + WORKER_COUNT.incrementAndGet();
+    }
+
+    /**
+     * Set the number of threads processing items. Defaults to four.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set how much of an error is sent for a failed item. Defaults to the full stack trace.
+     */
+    public void setRetention(Retention retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Set how long the coordinator may be unreachable before the worker gives up. Defaults to ten
+     * minutes.
+     */
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getDoneCount() {
+        return doneCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Process leased items until the coordinator says the run is finished.
+     *
+     * @param task processes the item with the given URI, returning the result to save
+     * @throws IOException if the coordinator could not be reached for longer than the timeout
+     */
+    public void work(Function<URI, String> task) throws IOException {
+        BlockingExecutor exe = new BlockingExecutor(threads);
+        long reached = System.currentTimeMillis();
+
+        try {
+            while (true) {
+                JSONObject claimed;
+
+                try {
+                    send();
+                    claimed = post("claim", SqliteRunner.CLAIM_BATCH_SIZE, new JSONObject());
+                    reached = System.currentTimeMillis();
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() - reached > timeout.toMillis()) {
+                        throw e;
+                    }
+
+                    LOG.warn("Could not reach coordinator at {}, trying again", coordinator, e);
+                    Thread.sleep(SqliteRunner.POLL_INTERVAL.toMillis());
+                    continue;
+                }
+
+                if (claimed.getBoolean("finished")) {
+                    break;
+                }
+
+                JSONArray items = claimed.getJSONArray("items");
+
+                // Nothing to do until the coordinator lists more items or leases of others expire.
+                // Outcomes still being worked on are sent first, as the run cannot finish without them.
+                if (items.length() == 0) {
+                    exe.awaitDone();
+
+                    if (done.isEmpty() && failed.isEmpty()) {
+                        Thread.sleep(SqliteRunner.POLL_INTERVAL.toMillis());
+                    }
+
+                    continue;
+                }
+
+                for (int i = 0; i < items.length(); i++) {
+                    JSONObject item = items.getJSONObject(i);
+                    exe.execute(() -> process(item, task));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted");
+        } finally {
+            exe.shutdown();
+        }
+
+        LOG.info("Finished with {} items done and {} failed", doneCount.get(), failedCount.get());
+    }
+
+    private void process(JSONObject item, Function<URI, String> task) {
+        try {
+            String result = task.apply(new URI(item.getString("uri")));
+
+            done.add(item.put("result", result));
+            doneCount.incrementAndGet();
+        } catch (Exception e) {
+            String error = retention == Retention.FULL ? SqliteRunner.getStackTrace(e) : SqliteRunner.getSummary(e);
+
+            failed.add(item.put("error", error));
+            failedCount.incrementAndGet();
+        }
+    }
+
+    // Send the outcomes gathered so far. Outcomes are put back if they could not be sent.
+    private void send() throws IOException {
+        JSONArray doneItems = drain(done);
+        JSONArray failedItems = drain(failed);
+
+        if (doneItems.length() + failedItems.length() == 0) {
+            return;
+        }
+
+        try {
+            post("finish", 0, new JSONObject().put("done", doneItems).put("failed", failedItems));
+        } catch (IOException e) {
+            doneItems.forEach(item -> done.add((JSONObject) item));
+            failedItems.forEach(item -> failed.add((JSONObject) item));
+            throw e;
+        }
+    }
+
+    private static JSONArray drain(Queue<JSONObject> queue) {
+        JSONArray items = new JSONArray();
+
+        for (JSONObject item = queue.poll(); item != null; item = queue.poll()) {
+            items.put(item);
+        }
+
+        return items;
+    }
+
+    private JSONObject post(String path, int count, JSONObject body) throws IOException {
+        HttpUrl.Builder url = coordinator.newBuilder().addPathSegment(path).addQueryParameter("worker", name);
+
+        if (count > 0) {
+            url.addQueryParameter("count", String.valueOf(count));
+        }
+
+        Request request = new Request.Builder().url(url.build()).post(RequestBody.create(JSON, body.toString()))
+                                               .build();
+
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody reply = response.body();
+            String text = reply == null ? "" : reply.string();
+
+            if (!response.isSuccessful()) {
+                throw new IOException("Coordinator replied " + response.code() + " to " + path + ": " + text);
+            }
+
+            return new JSONObject(text);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+
+/**
+ * Decides what is kept of the document saved for each successfully processed item, and encodes
+ * and decodes it. A document may be dropped, reduced to a digest, or kept in full. A document kept
+ * in full is either stored as text or compressed to a blob with deflate or zstd, optionally
+ * primed with a dictionary of content common to many documents.
+ *
+ * The encoding is saved alongside each result, so results written with different settings can
+ * be read back. The dictionary in use must be kept with the results, see SqliteRunner.
+ */
+public class ResultCodec {
+
+    public enum Retention {
+        NONE, HASH, FULL
+    }
+
+    public enum Compression {
+        NONE, DEFLATE, ZSTD
+    }
+
+    // Values of the encoding column of results. Results saved before encodings existed have none.
+    static final String ENCODING_NONE = "none";
+    static final String ENCODING_HASH = "hash";
+    static final String ENCODING_TEXT = "text";
+    static final String ENCODING_DEFLATE = "deflate";
+    static final String ENCODING_ZSTD = "zstd";
+
+    private static final int ZSTD_LEVEL = 3;
+
+    private final Retention retention;
+    private final Compression compression;
+    private final byte[] dictionary;
+    private final ZstdDictCompress zstdCompress;
+    private final ZstdDictDecompress zstdDecompress;
+
+    /**
+     * @param retention what is kept of each document
+     * @param compression how documents kept in full are compressed
+     * @param dictionary primes compression, may be null
+     */
+    public ResultCodec(Retention retention, Compression compression, byte[] dictionary) {
+        this.retention = retention;
+        this.compression = compression;
+        this.dictionary = dictionary;
+        this.zstdCompress = dictionary == null ? null : new ZstdDictCompress(dictionary, ZSTD_LEVEL);
+        this.zstdDecompress = dictionary == null ? null : new ZstdDictDecompress(dictionary);
+    }
+
+    public Retention getRetention() {
+        return retention;
+    }
+
+    public byte[] getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * A document as saved. Only the fields the encoding calls for are set.
+     */
+    static class Encoded {
+        final String encoding;
+        final String digest;
+        final String text;
+        final byte[] content;
+
+        Encoded(String encoding, String digest, String text, byte[] content) {
+            this.encoding = encoding;
+            this.digest = digest;
+            this.text = text;
+            this.content = content;
+        }
+    }
+
+    Encoded encode(String doc) {
+        if (doc == null || retention == Retention.NONE) {
+            return new Encoded(ENCODING_NONE, null, null, null);
+        }
+
+        byte[] bytes = doc.getBytes(StandardCharsets.UTF_8);
+        String digest = digest(bytes);
+
+        if (retention == Retention.HASH) {
+            return new Encoded(ENCODING_HASH, digest, null, null);
+        }
+
+        switch (compression) {
+            case DEFLATE:
+                return new Encoded(ENCODING_DEFLATE, digest, null, deflate(bytes));
+            case ZSTD:
+                byte[] compressed = zstdCompress == null ? Zstd.compress(bytes, ZSTD_LEVEL)
+                    : Zstd.compress(bytes, zstdCompress);
+                return new Encoded(ENCODING_ZSTD, digest, null, compressed);
+            default:
+                return new Encoded(ENCODING_TEXT, digest, doc, null);
+        }
+    }
+
+    /**
+     * @return the saved document, or null if it was not kept in full
+     */
+    String decode(String encoding, String text, byte[] content) {
+        if (encoding == null || encoding.equals(ENCODING_TEXT)) {
+            return text;
+        }
+
+        switch (encoding) {
+            case ENCODING_DEFLATE:
+                return new String(inflate(content), StandardCharsets.UTF_8);
+            case ENCODING_ZSTD:
+                int size = (int) Zstd.decompressedSize(content);
+                byte[] bytes = zstdDecompress == null ? Zstd.decompress(content, size)
+                    : Zstd.decompress(content, zstdDecompress, size);
+                return new String(bytes, StandardCharsets.UTF_8);
+            default:
+                return null;
+        }
+    }
+
+    private byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 16);
+            byte[] buf = new byte[4096];
+
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(bytes);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buf = new byte[4096];
+
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new RuntimeException("Saved result needs a dictionary which the db does not have");
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new RuntimeException("Saved result is truncated");
+                    }
+                }
+
+                out.write(buf, 0, n);
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Saved result is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
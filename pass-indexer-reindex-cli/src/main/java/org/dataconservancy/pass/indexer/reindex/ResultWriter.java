@@ -0,0 +1,221 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.PROGRESS_DONE;
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.PROGRESS_FAILED;
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.STMNT_ITEM_SAVE_RESULT;
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.STMNT_ITEM_SAVE_RESULT_ONCE;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the outcome of processed items from a single thread with its own connection. Outcomes
+ * are queued by workers, which never wait on the db, and committed in groups once enough have
+ * arrived or the oldest has waited long enough.
+ *
+ * The items of a group are moved out of the queue store in the transaction saving their results,
+ * if the store keeps its queue in the db, or else once the results are committed. If either step
+ * fails, the items stay leased in the queue. A runner processes them again once everything else is
+ * done, or another run does once their leases expire.
+ */
+class ResultWriter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultWriter.class);
+
+    private final Connection conn;
+    private final Supplier<QueueStore> store;
+    private final int groupSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Outcome> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    ResultWriter(Connection conn, Supplier<QueueStore> store, int groupSize, Duration maxDelay) {
+        this.conn = conn;
+        this.store = store;
+        this.groupSize = groupSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.thread = new Thread(this::run, "result-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void success(QueueStore.Entry entry, ResultCodec.Encoded result) {
+        queue.add(new Outcome(entry, PROGRESS_DONE, result, null));
+    }
+
+    void failure(QueueStore.Entry entry, String error) {
+        queue.add(new Outcome(entry, PROGRESS_FAILED, new ResultCodec.Encoded(null, null, error, null), null));
+    }
+
+    /**
+     * Wait until every outcome queued so far has been written.
+     */
+    void flush() {
+        CountDownLatch flushed = new CountDownLatch(1);
+        queue.add(new Outcome(null, 0, null, flushed));
+
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for results to be saved", e);
+        }
+    }
+
+    private void run() {
+        List<Outcome> group = new ArrayList<>(groupSize);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Outcome first = queue.poll(1, TimeUnit.SECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                group.add(first);
+
+                // Gather more outcomes until the group is full, the oldest has waited long enough,
+                // or somebody is waiting for the group to be written.
+                long deadline = System.nanoTime() + maxDelayNanos;
+
+                while (group.size() < groupSize && group.get(group.size() - 1).flushed == null) {
+                    Outcome next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+
+            write(group);
+
+            group.forEach(o -> {
+                if (o.flushed != null) {
+                    o.flushed.countDown();
+                }
+            });
+            group.clear();
+        }
+    }
+
+    private void write(List<Outcome> group) {
+        List<QueueStore.Entry> done = new ArrayList<>();
+        List<QueueStore.Entry> failed = new ArrayList<>();
+        List<Outcome> outcomes = new ArrayList<>();
+
+        for (Outcome o : group) {
+            if (o.flushed == null) {
+                // Successes leave the queue, failures are kept for clearing later
+                (o.status == PROGRESS_DONE ? done : failed).add(o.entry);
+                outcomes.add(o);
+            }
+        }
+
+        if (outcomes.isEmpty()) {
+            return;
+        }
+
+        QueueStore queue = store.get();
+        boolean finished;
+
+        try {
+            conn.setAutoCommit(false);
+
+            // Items are moved out along with saving their results, if the queue is in the db
+            finished = queue.finish(conn, done, failed);
+
+            try (PreparedStatement save = conn.prepareStatement(
+                finished ? STMNT_ITEM_SAVE_RESULT : STMNT_ITEM_SAVE_RESULT_ONCE)) {
+                for (Outcome o : outcomes) {
+                    // Save result, for in case we need to re-populate the index or do forensics
+                    save.setString(1, o.entry.type);
+                    save.setString(2, o.entry.uri);
+                    save.setInt(3, o.status);
+                    save.setString(4, o.result.text);
+                    save.setString(5, o.result.encoding);
+                    save.setString(6, o.result.digest);
+                    save.setBytes(7, o.result.content);
+
+                    if (!finished) {
+                        save.setString(8, o.entry.uri);
+                        save.setString(9, o.entry.type);
+                    }
+
+                    save.addBatch();
+                }
+
+                save.executeBatch();
+            }
+
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException x) {
+                LOG.warn("Could not roll back results", x);
+            }
+            LOG.warn("Could not save {} results, their items stay leased", outcomes.size(), e);
+            return;
+        }
+
+        if (finished) {
+            return;
+        }
+
+        try {
+            queue.finish(done, failed);
+        } catch (RuntimeException e) {
+            LOG.warn("Could not remove {} items from the queue, they stay leased", outcomes.size(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOG.warn("Could not close result writer connection", e);
+        }
+    }
+
+    private static class Outcome {
+        final QueueStore.Entry entry;
+        final int status;
+        final ResultCodec.Encoded result;
+        final CountDownLatch flushed;
+
+        Outcome(QueueStore.Entry entry, int status, ResultCodec.Encoded result, CountDownLatch flushed) {
+            this.entry = entry;
+            this.status = status;
+            this.result = result;
+            this.flushed = flushed;
+        }
+    }
+}
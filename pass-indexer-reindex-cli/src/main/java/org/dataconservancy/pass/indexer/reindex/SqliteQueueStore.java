@@ -0,0 +1,253 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.PROGRESS_ENQUEUED;
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.PROGRESS_FAILED;
+import static org.dataconservancy.pass.indexer.reindex.SqliteRunner.PROGRESS_RUNNING;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the queue in the item_queue table of the db of a SqliteRunner, which creates the table.
+ * Several processes may share the queue.
+ */
+class SqliteQueueStore implements QueueStore {
+
+    static final String STMNT_ITEM_ENQUEUE = "INSERT INTO item_queue (type, url) VALUES (?, ?)";
+    static final String STMNT_ITEM_URLS_OF_TYPE = "SELECT url FROM item_queue WHERE type = ?";
+    static final String STMNT_ITEM_REMOVE_TYPE = String.format(
+        "DELETE FROM item_queue WHERE type = ? AND progress = %d", PROGRESS_ENQUEUED);
+
+    static final String STMNT_ITEM_REMOVE = "DELETE FROM item_queue WHERE id = ?";
+    static final String STMNT_ITEM_FAIL = String.format("UPDATE item_queue SET progress = %d WHERE id = ?",
+                                                        PROGRESS_FAILED);
+
+    // Take a batch of pending items out of the queue, leasing them until the given time.
+    static final String STMNT_ITEM_CLAIM = String.format(
+        "UPDATE item_queue SET progress = %d, lease_expires = ? WHERE id IN "
+        + "(SELECT id FROM item_queue WHERE progress = %d ORDER BY id LIMIT ?) "
+        + "RETURNING id, type, url", PROGRESS_RUNNING, PROGRESS_ENQUEUED);
+
+    // Put items whose lease expired before the given time back in the queue.
+    static final String STMNT_ITEM_RELEASE_EXPIRED = String.format(
+        "UPDATE item_queue SET progress = %d, lease_expires = NULL WHERE progress = %d AND lease_expires < ?",
+        PROGRESS_ENQUEUED, PROGRESS_RUNNING);
+
+    static final String STMNT_ITEM_COUNT_REMAINING = String.format(
+        "SELECT (SELECT count(*) FROM item_queue WHERE progress = %d) + "
+        + "(SELECT count(*) FROM item_queue WHERE progress = %d)", PROGRESS_ENQUEUED, PROGRESS_RUNNING);
+    static final String STMNT_ITEM_COUNT_LEASED = String.format(
+        "SELECT count(*) FROM item_queue WHERE progress = %d", PROGRESS_RUNNING);
+    static final String STMNT_ITEM_COUNT_BY_TYPE = "SELECT type, progress, count(*) FROM item_queue "
+                                                   + "GROUP BY type, progress";
+    static final String STMNT_ITEM_COUNT_FAILED = String.format(
+        "SELECT count(*) FROM item_queue WHERE progress = %d", PROGRESS_FAILED);
+    static final String STMNT_ITEM_RETRY_FAILED = String.format(
+        "UPDATE item_queue SET progress = %d WHERE progress = %d", PROGRESS_ENQUEUED, PROGRESS_FAILED);
+
+    private final Connection conn;
+
+    SqliteQueueStore(Connection conn) {
+        this.conn = conn;
+    }
+
+    @Override
+    public synchronized void enqueue(String type, List<String> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+
+        // The transaction begins with a write, so that it waits for other writers rather than failing.
+        try (PreparedStatement insert = conn.prepareStatement(STMNT_ITEM_ENQUEUE)) {
+            conn.setAutoCommit(false);
+
+            for (String uri : uris) {
+                insert.setString(1, type);
+                insert.setString(2, uri);
+                insert.addBatch();
+            }
+
+            insert.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new RuntimeException("Could not enqueue items of " + type, e);
+        } finally {
+            autocommit();
+        }
+    }
+
+    @Override
+    public synchronized void forEachQueued(String type, Consumer<String> consumer) {
+        try (PreparedStatement select = conn.prepareStatement(STMNT_ITEM_URLS_OF_TYPE)) {
+            select.setString(1, type);
+
+            try (ResultSet results = select.executeQuery()) {
+                while (results.next()) {
+                    consumer.accept(results.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not read items of " + type, e);
+        }
+    }
+
+    @Override
+    public synchronized void abandon(String type) {
+        try (PreparedStatement remove = conn.prepareStatement(STMNT_ITEM_REMOVE_TYPE)) {
+            remove.setString(1, type);
+            remove.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not remove items of " + type, e);
+        }
+    }
+
+    @Override
+    public synchronized List<Entry> claim(int count, long leaseExpires) {
+        List<Entry> entries = new ArrayList<>(count);
+
+        try (PreparedStatement claim = conn.prepareStatement(STMNT_ITEM_CLAIM)) {
+            claim.setLong(1, leaseExpires);
+            claim.setInt(2, count);
+
+            try (ResultSet results = claim.executeQuery()) {
+                while (results.next()) {
+                    entries.add(new Entry(results.getLong(1), results.getString(2), results.getString(3)));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not claim items", e);
+        }
+
+        return entries;
+    }
+
+    @Override
+    public synchronized int releaseExpired(long expiredBefore) {
+        try (PreparedStatement release = conn.prepareStatement(STMNT_ITEM_RELEASE_EXPIRED)) {
+            release.setLong(1, expiredBefore);
+
+            return release.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not release items", e);
+        }
+    }
+
+    @Override
+    public synchronized void finish(List<Entry> done, List<Entry> failed) {
+        try {
+            conn.setAutoCommit(false);
+            finish(conn, done, failed);
+            conn.commit();
+        } catch (SQLException e) {
+            rollback();
+            throw new RuntimeException("Could not finish items", e);
+        } finally {
+            autocommit();
+        }
+    }
+
+    // The queue is in the db of the runner, so the caller's transaction can include it.
+    @Override
+    public boolean finish(Connection tx, List<Entry> done, List<Entry> failed) throws SQLException {
+        try (PreparedStatement remove = tx.prepareStatement(STMNT_ITEM_REMOVE);
+             PreparedStatement fail = tx.prepareStatement(STMNT_ITEM_FAIL)) {
+            for (Entry e : done) {
+                remove.setLong(1, e.id);
+                remove.addBatch();
+            }
+
+            for (Entry e : failed) {
+                fail.setLong(1, e.id);
+                fail.addBatch();
+            }
+
+            remove.executeBatch();
+            fail.executeBatch();
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized long remainingCount() {
+        return count(STMNT_ITEM_COUNT_REMAINING);
+    }
+
+    @Override
+    public synchronized long leasedCount() {
+        return count(STMNT_ITEM_COUNT_LEASED);
+    }
+
+    @Override
+    public synchronized long failedCount() {
+        return count(STMNT_ITEM_COUNT_FAILED);
+    }
+
+    @Override
+    public synchronized void retryFailed() {
+        try (PreparedStatement retry = conn.prepareStatement(STMNT_ITEM_RETRY_FAILED)) {
+            retry.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not retry failed items", e);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, long[]> counts() {
+        Map<String, long[]> counts = new HashMap<>();
+
+        try (PreparedStatement select = conn.prepareStatement(STMNT_ITEM_COUNT_BY_TYPE);
+             ResultSet results = select.executeQuery()) {
+            while (results.next()) {
+                long[] c = counts.computeIfAbsent(results.getString(1), t -> new long[2]);
+                c[results.getInt(2) == PROGRESS_FAILED ? 1 : 0] += results.getLong(3);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not count items", e);
+        }
+
+        return counts;
+    }
+
+    private long count(String query) {
+        try (PreparedStatement select = conn.prepareStatement(query);
+             ResultSet results = select.executeQuery()) {
+            return results.next() ? results.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not count items", e);
+        }
+    }
+
+    private void rollback() {
+        try {
+            conn.rollback();
+        } catch (SQLException x) {
+            // Nothing to roll back
+        }
+    }
+
+    private void autocommit() {
+        try {
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not restore autocommit", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not close queue connection", e);
+        }
+    }
+}
@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -12,19 +14,37 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Compression;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Retention;
 import org.dataconservancy.pass.model.PassEntity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,9 +58,22 @@ public class SqliteRunner implements AutoCloseable {
     public static final int PROGRESS_RUNNING = 1;
     public static final int PROGRESS_DONE = 100;
 
+    // A result is kept as text in result, or compressed in content, as described by encoding. See ResultCodec.
     static final String STMNT_CREATE_TABLE_RESULTS = "CREATE TABLE results ("
                                                      + "id INTEGER PRIMARY KEY, url TEXT NOT NULL, type TEXT NOT NULL, "
-                                                     + "status INTEGER NOT NULL, result TEXT)";
+                                                     + "status INTEGER NOT NULL, result TEXT, encoding TEXT, "
+                                                     + "digest TEXT, content BLOB)";
+
+    static final String STMNT_CREATE_TABLE_META = "CREATE TABLE IF NOT EXISTS meta ("
+                                                  + "key TEXT PRIMARY KEY, value BLOB)";
+    static final String STMNT_META_GET = "SELECT value FROM meta WHERE key = ?";
+    static final String STMNT_META_PUT = "INSERT OR REPLACE INTO meta (key, value) VALUES (?, ?)";
+
+    static final String META_DICTIONARY = "results.dictionary";
+
+    // When the first run over the db started, and the checkpoint recorded once every item succeeded
+    static final String META_STARTED = "run.started";
+    static final String META_CHECKPOINT = "run.checkpoint";
 
     static final String STMNT_CREATE_TABLE_TYPE_QUEUE = String.format(
         "CREATE TABLE types_queue ("
@@ -50,28 +83,92 @@ public class SqliteRunner implements AutoCloseable {
     static final String STMNT_CREATE_TABLE_ITEM_QUEUE = String.format("CREATE TABLE item_queue ("
                                                                       + "id INTEGER PRIMARY KEY, type TEXT NOT NULL, " +
                                                                       "url TEXT NOT NULL, progress INTEGER NOT NULL " +
-                                                                      "DEFAULT %d)",
+                                                                      "DEFAULT %d, lease_expires INTEGER)",
                                                                       PROGRESS_ENQUEUED);
 
-    static final String STMNT_ITEM_START = String.format("UPDATE item_queue SET progress = %s WHERE id = ?",
-                                                         PROGRESS_RUNNING);
-    static final String STMNT_ITEM_REMOVE = String.format("DELETE FROM item_queue WHERE id = ?");
-    static final String STMNT_ITEM_FAIL = String.format("UPDATE item_queue SET progress = %d WHERE id = ?",
-                                                        PROGRESS_FAILED);
-    static final String STMNT_ITEM_SAVE_RESULT = "INSERT INTO results (type, url, status, result) VALUES (?, ?, ?, ?)";
-    static final String STMNT_ITEM_POLL = String
-        .format("SELECT id, type, url FROM item_queue WHERE progress = %d LIMIT ?", PROGRESS_ENQUEUED);
+    // Added after the item_queue table was first released, so older dbs are upgraded on open.
+    static final String STMNT_ADD_COLUMN_LEASE = "ALTER TABLE item_queue ADD COLUMN lease_expires INTEGER";
+
+    static final String STMNT_CREATE_INDEX_PENDING = String.format(
+        "CREATE INDEX IF NOT EXISTS item_queue_pending ON item_queue (id) WHERE progress = %d", PROGRESS_ENQUEUED);
+    static final String STMNT_CREATE_INDEX_LEASED = String.format(
+        "CREATE INDEX IF NOT EXISTS item_queue_leased ON item_queue (lease_expires) WHERE progress = %d",
+        PROGRESS_RUNNING);
+
+    static final String STMNT_TYPE_PROGRESS = "UPDATE types_queue SET progress = ? WHERE type = ?";
+
+    static final String STMNT_ITEM_SAVE_RESULT = "INSERT INTO results (type, url, status, result, encoding, digest, "
+                                                 + "content) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    // Saves a result unless the item already has one which is done, for when an item is processed
+    // again because it could not be moved out of a queue outside the db.
+    static final String STMNT_ITEM_SAVE_RESULT_ONCE = String.format(
+        "INSERT INTO results (type, url, status, result, encoding, digest, content) "
+        + "SELECT ?, ?, ?, ?, ?, ?, ? WHERE NOT EXISTS "
+        + "(SELECT 1 FROM results WHERE url = ? AND type = ? AND status = %d)", PROGRESS_DONE);
+    static final String STMNT_CREATE_INDEX_RESULTS_DONE = String.format(
+        "CREATE INDEX IF NOT EXISTS results_done ON results (url) WHERE status = %d", PROGRESS_DONE);
+
+    static final String STMNT_RESULTS_DONE = String
+        .format("SELECT url, result, encoding, content FROM results WHERE status = %d AND "
+                + "(result IS NOT NULL OR content IS NOT NULL) ORDER BY id", PROGRESS_DONE);
+
+    // Results are only ever appended, so they are counted a range of ids at a time.
+    static final String STMNT_RESULTS_MAX_ID = "SELECT max(id) FROM results";
+    static final String STMNT_RESULTS_COUNT_DONE = String.format(
+        "SELECT type, count(*) FROM results WHERE id > ? AND id <= ? AND status = %d GROUP BY type", PROGRESS_DONE);
 
     static final String STMNT_FAIL_COUNT_TYPES = String.format("SELECT count(*) FROM  types_queue WHERE progress = %d",
                                                                PROGRESS_FAILED);
-    static final String STMNT_FAIL_COUNT_ITEMS = String.format("SELECT count(*) FROM item_queue WHERE PROGRESS = %d",
-                                                               PROGRESS_FAILED);
+
+    // Number of listed items committed to the queue at once, also the size of the listing buffer
+    static final int ENQUEUE_CHUNK_SIZE = 1000;
+
+    // Follows the last URI of a listing in the buffer
+    private static final URI END_OF_LISTING = URI.create("urn:end-of-listing");
+
+    // Number of items claimed from the queue at once
+    static final int CLAIM_BATCH_SIZE = 100;
+
+    // How often a coordinator and its workers check on each other's progress
+    static final Duration POLL_INTERVAL = Duration.ofSeconds(2);
+
+    // Time a connection waits for another connection to release its lock on the db
+    static final int BUSY_TIMEOUT_MILLIS = 30000;
+
+    // Number of item outcomes committed together, and the longest an outcome waits for its group
+    static final int RESULT_GROUP_SIZE = 500;
+    static final Duration RESULT_GROUP_DELAY = Duration.ofMillis(200);
+
+    // Number of times items are processed in one run when their outcomes cannot be saved
+    static final int SAVE_ATTEMPTS = 3;
 
     private final Connection conn;
     private final String filepath;
+    private final ResultWriter results;
+    private QueueStore store;
+
+    private int threads = 4;
+
+    private ResultCodec codec = new ResultCodec(Retention.FULL, Compression.NONE, null);
+
+    private int listers = 1;
 
-    // Default 4 threads
-    BlockingExecutor exe = new BlockingExecutor(4);
+    // Number of chunks of items committed by listers, signalled to the thread handing out items.
+    private final Object enqueued = new Object();
+    private long enqueuedChunks;
+
+    private Duration lease = Duration.ofMinutes(10);
+
+    private Duration progressInterval = Duration.ofMinutes(1);
+    private Path metricsFile;
+    private ProgressReporter progress;
+
+    // Results counted for progress reports so far, guarded by conn
+    private final Map<String, Long> doneCounts = new HashMap<>();
+    private long countedResultId;
+
+    private Duration workerTimeout = Duration.ofMinutes(10);
 
     public SqliteRunner(Collection<Class<? extends PassEntity>> types) {
         this.filepath = newFilePath();
@@ -101,64 +198,441 @@ public class SqliteRunner implements AutoCloseable {
 
             throw new RuntimeException("could not initialize", e);
         }
+
+        store = new SqliteQueueStore(open(filepath));
+        results = new ResultWriter(open(filepath), () -> store, RESULT_GROUP_SIZE, RESULT_GROUP_DELAY);
     }
 
     public SqliteRunner(String filepath) {
         this.filepath = filepath;
         conn = open(filepath);
+        upgrade();
+        store = new SqliteQueueStore(open(filepath));
+        results = new ResultWriter(open(filepath), () -> store, RESULT_GROUP_SIZE, RESULT_GROUP_DELAY);
+    }
+
+    /**
+     * Keep the queue of items in the given store rather than in the db. Must be set before
+     * processing, and every time the db is opened. Only the queue in the db can be shared by
+     * several processes.
+     */
+    public void setQueueStore(QueueStore store) {
+        this.store.close();
+        this.store = store;
     }
 
     public String getFilePath() {
         return this.filepath;
     }
 
+    /**
+     * Set how long a worker may hold an item before it is put back in the queue for others.
+     * Should comfortably exceed the time taken to process a single item.
+     */
+    public void setLease(Duration lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * Set what is saved of the document produced for each item. By default documents are saved
+     * in full as text. A dictionary used by the codec is saved in the db, so that results can be
+     * decoded later. A db can only hold results written with one dictionary.
+     */
+    public void setResultCodec(ResultCodec codec) {
+        byte[] dictionary = codec.getDictionary();
+
+        if (dictionary != null) {
+            byte[] saved = getMeta(META_DICTIONARY);
+
+            if (saved == null) {
+                putMeta(META_DICTIONARY, dictionary);
+            } else if (!Arrays.equals(saved, dictionary)) {
+                throw new IllegalArgumentException("The db already holds results written with a different dictionary");
+            }
+        }
+
+        this.codec = codec;
+    }
+
+    /**
+     * Set the number of threads processing items. Defaults to four.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set the number of types which are listed and enqueued concurrently. Defaults to one,
+     * so that Fedora only has to answer a single listing at a time.
+     */
+    public void setListers(int listers) {
+        this.listers = listers;
+    }
+
+    /**
+     * Set how often progress is reported while processing. Defaults to every minute.
+     */
+    public void setProgressInterval(Duration progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Set a file which progress metrics are written to as JSON each time progress is reported.
+     * By default progress is only logged.
+     */
+    public void setMetricsFile(Path metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * Set how long a coordinator waits for any worker to ask for items while items remain, before
+     * giving up. Defaults to ten minutes.
+     */
+    public void setWorkerTimeout(Duration workerTimeout) {
+        this.workerTimeout = workerTimeout;
+    }
+
     public void process(Function<Class<? extends PassEntity>, Stream<URI>> lister, Function<URI, String> task) {
+        process((type, sink) -> {
+            try (Stream<URI> uris = lister.apply(type)) {
+                uris.forEach(sink);
+            }
+        }, task);
+    }
 
-        // Listing by type and enqueueing, one-by-one so that Fedora isn't killed.
-        exe.execute(() -> {
-            try {
-                for (Class<? extends PassEntity> type = nextType(); type != null; type = nextType()) {
-                    final Class<? extends PassEntity> next = type;
-                    LOG.info("Enqueueing " + type.getSimpleName());
-                    enqueue(next, lister);
-                    LOG.info("Done enqueueing " + type.getSimpleName());
+    /**
+     * List every type in the queue, enqueueing and processing the items of each.
+     *
+     * @param lister hands each URI of the given type to the given sink as it is listed
+     * @param task processes the item with the given URI, returning the result to save
+     */
+    public void process(BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister, Function<URI, String> task) {
+
+        // Types claimed by a run which did not finish never had their items committed.
+        resetRunningTypes();
+
+        // Nobody else is working on this db, so items started by a run which did not finish are
+        // put back in the queue right away rather than waiting for their leases to expire.
+        releaseLeases(Long.MAX_VALUE);
+
+        startRun();
+        CountDownLatch listed = startListing(lister);
+
+        BlockingExecutor exe = new BlockingExecutor(threads);
+
+        try {
+            // Keep processing items until there are no more, waiting for listers to add some
+            // whenever the queue runs dry.
+            while (listed.getCount() > 0) {
+                long seen = enqueuedChunks();
+                processItems(exe, task);
+                awaitEnqueued(seen, listed);
+            }
+
+            // last round of processing, now that we know we're done populating the queues.
+            processItems(exe, task);
+            exe.awaitDone();
+            results.flush();
+
+            // Items whose outcomes could not be saved are still leased, so they are processed again.
+            // Any left after that are counted as errors.
+            for (int attempt = 1; attempt < SAVE_ATTEMPTS && remainingCount() > 0; attempt++) {
+                LOG.warn("Processing {} items again, their outcomes were not saved", remainingCount());
+                releaseLeases(Long.MAX_VALUE);
+                processItems(exe, task);
+                exe.awaitDone();
+                results.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted");
+        } finally {
+            exe.shutdown();
+            progress.close();
+        }
+    }
+
+    /**
+     * List every type in the queue and wait for workers to process the items, which they lease
+     * from the given server. Items are not processed by the coordinator. Leases of workers which
+     * stopped expire and their items are handed to other workers.
+     *
+     * @param lister hands each URI of the given type to the given sink as it is listed
+     * @param server hands out items to workers, see RemoteWorker
+     * @throws IllegalStateException if items remain and no worker asked for any within the worker timeout
+     */
+    public void coordinate(BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister, LeaseServer server) {
+
+        // Types claimed by a coordinator which did not finish never had their items committed.
+        // Items leased to workers are left to them until their leases expire.
+        resetRunningTypes();
+
+        startRun();
+        server.start(this);
+
+        try {
+            CountDownLatch listed = startListing(lister);
+
+            while (listed.getCount() > 0 || remainingCount() > 0) {
+                Thread.sleep(POLL_INTERVAL.toMillis());
+                releaseLeases(System.currentTimeMillis());
+
+                if (remainingCount() > 0 && server.idleMillis() > workerTimeout.toMillis()) {
+                    throw new IllegalStateException(String.format(
+                        "No worker asked for items in %d seconds, %d items remain", server.idleMillis() / 1000,
+                        remainingCount()));
                 }
-            } catch (Exception e) {
-                LOG.warn("Error populating item queue", e);
+
+                LOG.debug("Waiting for workers to process {} items", remainingCount());
             }
-        });
 
-        // Keep processing items until there are no more
-        while (!isDoneQueueing()) {
-            processItems(task);
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                LOG.warn("Interrupted");
-                return;
+            // Let workers waiting for items find out that the run is over
+            server.awaitReleased(POLL_INTERVAL.multipliedBy(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted");
+        } finally {
+            progress.close();
+        }
+    }
+
+    // Lease up to count pending items to a worker of the coordinator.
+    List<QueueStore.Entry> lease(int count) {
+        return store.claim(count, System.currentTimeMillis() + lease.toMillis());
+    }
+
+    // Save the outcomes of items processed by a worker, keyed by item, waiting until they are written.
+    // Items whose outcome could not be saved stay leased, and are handed out again once their leases expire.
+    void saveOutcomes(Map<QueueStore.Entry, String> done, Map<QueueStore.Entry, String> failed) {
+        done.forEach((entry, doc) -> results.success(entry, codec.encode(doc)));
+        failed.forEach(results::failure);
+        results.flush();
+    }
+
+    // True once every type has been listed and no item is pending or leased
+    boolean isFinished() {
+        return isDoneListing() && remainingCount() == 0;
+    }
+
+    // Record the start of the first run and start reporting progress.
+    private void startRun() {
+        if (getMeta(META_STARTED) == null) {
+            putMeta(META_STARTED, Instant.now().toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        progress = new ProgressReporter(this::queueCounts, metricsFile);
+        progress.start(progressInterval);
+    }
+
+    // Listing by type and enqueueing, each lister claiming the next type in the queue when done with one.
+    // Returns a latch released once every lister has finished.
+    private CountDownLatch startListing(BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister) {
+        ExecutorService listing = Executors.newFixedThreadPool(listers);
+        CountDownLatch listed = new CountDownLatch(listers);
+
+        for (int i = 0; i < listers; i++) {
+            listing.execute(() -> {
+                try {
+                    for (Class<? extends PassEntity> type = nextType(); type != null; type = nextType()) {
+                        LOG.info("Enqueueing " + type.getSimpleName());
+                        enqueue(type, lister);
+                        LOG.info("Done enqueueing " + type.getSimpleName());
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Error populating item queue", e);
+                } finally {
+                    listed.countDown();
+                    signalEnqueued();
+                }
+            });
+        }
+
+        listing.shutdown();
+
+        return listed;
+    }
+
+    // Number of items pending or leased
+    private long remainingCount() {
+        return store.remainingCount();
+    }
+
+    // True if no type is waiting to be listed or being listed
+    private boolean isDoneListing() {
+        AtomicBoolean done = new AtomicBoolean();
+
+        synchronized (conn) {
+            autocommit();
+            execQuery(String.format("SELECT count(*) FROM types_queue WHERE progress IN (%d, %d)", PROGRESS_ENQUEUED,
+                                    PROGRESS_RUNNING), null, results -> {
+                    done.set(results.next() && results.getInt(1) == 0);
+                });
+        }
+
+        return done.get();
+    }
+
+    // Counts of each type from the queue tables and the results saved, including those sent by workers.
+    private Map<String, ProgressReporter.TypeCounts> queueCounts() {
+        Map<String, ProgressReporter.TypeCounts> counts = new HashMap<>();
+
+        synchronized (conn) {
+            autocommit();
+
+            AtomicLong maxId = new AtomicLong();
+            execQuery(STMNT_RESULTS_MAX_ID, null, results -> {
+                if (results.next()) {
+                    maxId.set(results.getLong(1));
+                }
+            });
+
+            if (maxId.get() > countedResultId) {
+                execQuery(STMNT_RESULTS_COUNT_DONE, s -> {
+                    s.setLong(1, countedResultId);
+                    s.setLong(2, maxId.get());
+                }, results -> {
+                        while (results.next()) {
+                            doneCounts.merge(results.getString(1), results.getLong(2), Long::sum);
+                        }
+                    });
+                countedResultId = maxId.get();
             }
+
+            doneCounts.forEach((type, n) -> counts.computeIfAbsent(type, t -> new ProgressReporter.TypeCounts())
+                .done = n);
         }
 
-        // last round of processing, now that we know we're done populating the queues.
-        processItems(task);
-        exe.awaitDone();
+        synchronized (conn) {
+            autocommit();
+
+            execQuery("SELECT type, progress FROM types_queue", null, results -> {
+                while (results.next()) {
+                    String name = results.getString(1);
+                    int state = results.getInt(2);
+
+                    // Listing a type which failed is retried in a later run, not this one
+                    counts.computeIfAbsent(name.substring(name.lastIndexOf('.') + 1),
+                        t -> new ProgressReporter.TypeCounts()).listed = state == PROGRESS_DONE ||
+                                                                         state == PROGRESS_FAILED;
+                }
+            });
+
+            store.counts().forEach((type, n) -> {
+                ProgressReporter.TypeCounts c = counts.computeIfAbsent(type, t -> new ProgressReporter.TypeCounts());
+                c.pending += n[0];
+                c.failed += n[1];
+            });
+        }
+
+        return counts;
+    }
+
+    /**
+     * Record when the first run over this db started as its checkpoint. Only allowed once every
+     * item has been processed successfully. Resources modified after the checkpoint may not be
+     * reflected in the index, anything modified before it is.
+     */
+    public void saveCheckpoint() {
+        byte[] started = getMeta(META_STARTED);
+
+        if (started == null) {
+            throw new IllegalStateException("Nothing has been processed");
+        }
+
+        if (errorCount() > 0) {
+            throw new IllegalStateException("Items are failed or remain in the queue: " + errorCount());
+        }
+
+        putMeta(META_CHECKPOINT, started);
+    }
+
+    /**
+     * @return checkpoint saved in this db, or null if there is none
+     */
+    public Instant getCheckpoint() {
+        byte[] checkpoint = getMeta(META_CHECKPOINT);
+
+        return checkpoint == null ? null : Instant.parse(new String(checkpoint, StandardCharsets.UTF_8));
     }
 
-    private void processItems(Function<URI, String> task) {
-        AtomicInteger processedCount = new AtomicInteger();
+    private long enqueuedChunks() {
+        synchronized (enqueued) {
+            return enqueuedChunks;
+        }
+    }
+
+    private void signalEnqueued() {
+        synchronized (enqueued) {
+            enqueuedChunks++;
+            enqueued.notifyAll();
+        }
+    }
+
+    // Wait until more items have been committed since the given count, or all listers are done.
+    private void awaitEnqueued(long seen, CountDownLatch listed) throws InterruptedException {
+        synchronized (enqueued) {
+            while (enqueuedChunks == seen && listed.getCount() > 0) {
+                enqueued.wait();
+            }
+        }
+    }
+
+    /**
+     * Stream the saved documents of successfully processed items to the given sink, in batches
+     * keyed by URI. Items without a saved document, such as deleted resources, are skipped.
+     * Later results for a URI replace earlier ones within a batch. Each batch is a new map owned
+     * by the sink.
+     *
+     * @param batchSize maximum number of documents handed to the sink at once
+     * @param sink receives each batch
+     * @return number of saved documents read
+     */
+    public int restore(int batchSize, Consumer<Map<String, String>> sink) {
+        AtomicInteger count = new AtomicInteger();
+        ResultCodec decoder = new ResultCodec(Retention.FULL, Compression.NONE, getMeta(META_DICTIONARY));
+
+        synchronized (conn) {
+            autocommit();
+
+            execQuery(STMNT_RESULTS_DONE, null, results -> {
+                Map<String, String> batch = new LinkedHashMap<>();
+
+                while (results.next()) {
+                    batch.put(results.getString(1),
+                              decoder.decode(results.getString(3), results.getString(2), results.getBytes(4)));
+                    count.incrementAndGet();
+
+                    if (batch.size() >= batchSize) {
+                        sink.accept(batch);
+                        batch = new LinkedHashMap<>();
+                    }
+                }
+
+                if (!batch.isEmpty()) {
+                    sink.accept(batch);
+                }
+            });
+        }
+
+        return count.get();
+    }
+
+    // Hand queued items to the executor until none are left, returning how many there were.
+    private int processItems(BlockingExecutor exe, Function<URI, String> task) {
+        int count = 0;
+
         for (Item item : queuedItems()) {
+            count++;
             exe.execute(() -> {
                 try {
                     item.process(task);
-                    if (processedCount.incrementAndGet() % 1000 == 0) {
-                        LOG.info("Processed " + processedCount.get());
-                    }
                 } catch (Exception e) {
                     LOG.warn("Uncaut exception processing items", e);
                 }
             });
         }
+
+        return count;
     }
 
     private Iterable<Item> queuedItems() {
@@ -169,7 +643,7 @@ public class SqliteRunner implements AutoCloseable {
             @Override
             public boolean hasNext() {
                 if (items.isEmpty()) {
-                    items.addAll(fetchItems(100));
+                    items.addAll(fetchItems(CLAIM_BATCH_SIZE));
                 }
                 return !items.isEmpty();
             }
@@ -184,22 +658,26 @@ public class SqliteRunner implements AutoCloseable {
 
     private Collection<Item> fetchItems(int count) {
         List<Item> items = new ArrayList<Item>(count);
-        synchronized (conn) {
-            autocommit();
+        long now = System.currentTimeMillis();
 
-            execQuery(STMNT_ITEM_POLL, stmnt -> {
-                stmnt.setInt(1, count);
-            }, results -> {
-                    while (results.next()) {
-                        items.add(new Item(results.getInt(1), results.getString(2), results.getString(3)).start(conn));
-                    }
-                }
-            );
+        releaseLeases(now);
+
+        for (QueueStore.Entry entry : store.claim(count, now + lease.toMillis())) {
+            items.add(new Item(entry));
         }
 
         return items;
     }
 
+    // Release leases which expired before the given time.
+    private void releaseLeases(long expiredBefore) {
+        int released = store.releaseExpired(expiredBefore);
+
+        if (released > 0) {
+            LOG.info("Put {} items with expired leases back in the queue", released);
+        }
+    }
+
     private void begin() {
         quietly(() -> {
             conn.setAutoCommit(false);
@@ -244,6 +722,10 @@ public class SqliteRunner implements AutoCloseable {
         }
     }
 
+    /**
+     * @return number of types whose listing failed and items which failed, or which remain in the
+     *         queue because their outcome was not saved. Only meaningful once processing is over.
+     */
     public int errorCount() {
         AtomicInteger count = new AtomicInteger(0);
         synchronized (conn) {
@@ -256,15 +738,10 @@ public class SqliteRunner implements AutoCloseable {
                 }
             });
 
-            // count from items queue
-            execQuery(STMNT_FAIL_COUNT_ITEMS, null, results -> {
-                if (results.next()) {
-                    count.getAndAdd(results.getInt(1));
-                }
-            });
         }
 
-        return count.get();
+        // count from items queue
+        return count.get() + (int) store.failedCount() + (int) store.leasedCount();
     }
 
     public void clearErrors() {
@@ -273,9 +750,9 @@ public class SqliteRunner implements AutoCloseable {
 
             execUpdate(String.format("UPDATE types_queue SET progress = %d WHERE progress = %d", PROGRESS_ENQUEUED,
                                      PROGRESS_FAILED), null);
-            execUpdate(String.format("UPDATE item_queue SET progress = %d WHERE progress = %d", PROGRESS_ENQUEUED,
-                                     PROGRESS_FAILED), null);
         }
+
+        store.retryFailed();
     }
 
     private interface SQLRunnable {
@@ -326,91 +803,24 @@ public class SqliteRunner implements AutoCloseable {
     }
 
     private class Item {
-        public int id;
-        public String uri;
-        public String type;
-
-        public Item(int id, String type, String uri) {
-            this.id = id;
-            this.type = type;
-            this.uri = uri;
-        }
+        public QueueStore.Entry entry;
 
-        public Item start(Connection conn) {
-            try {
-                begin();
-                execUpdate(STMNT_ITEM_START, s -> {
-                    s.setInt(1, this.id);
-                });
-                commit();
-            } catch (Exception e) {
-                rollback();
-                throw new RuntimeException("could not take item out of queue", e);
-            }
-            return this;
-        }
-
-        private void saveFailure(Exception e) {
-            synchronized (conn) {
-                try {
-                    begin();
-
-                    // Set to failed state
-                    execUpdate(STMNT_ITEM_FAIL, s -> {
-                        s.setInt(1, this.id);
-                    });
-
-                    // Save failure, for in case we need forensics
-                    execUpdate(STMNT_ITEM_SAVE_RESULT, s -> {
-                        s.setString(1, this.type);
-                        s.setString(2, this.uri);
-                        s.setInt(3, PROGRESS_FAILED);
-                        s.setString(4, getStackTrace(e));
-                    });
-
-                    commit();
-                } catch (Exception x) {
-                    rollback();
-                    LOG.warn("Could not save the following error: \n" + getStackTrace(e), x);
-                }
-            }
+        public Item(QueueStore.Entry entry) {
+            this.entry = entry;
         }
 
         public boolean process(Function<URI, String> task) {
             final String result;
             try {
-                result = task.apply(new URI(this.uri));
+                result = task.apply(new URI(entry.uri));
             } catch (Exception e) {
-                saveFailure(e);
+                // Set to failed state, saving the failure for in case we need forensics
+                results.failure(entry, codec.getRetention() == Retention.FULL ? getStackTrace(e) : getSummary(e));
                 return false;
             }
 
-            // Success path
-            synchronized (conn) {
-                try {
-                    begin();
-
-                    // Remove from queue
-                    execUpdate(STMNT_ITEM_REMOVE, s -> {
-                        s.setInt(1, this.id);
-                    });
-
-                    // Save result, for in case we need to re-populate the index
-                    execUpdate(STMNT_ITEM_SAVE_RESULT, s -> {
-                        s.setString(1, this.type);
-                        s.setString(2, this.uri);
-                        s.setInt(3, PROGRESS_DONE);
-                        s.setString(4, result);
-                    });
-
-                    commit();
-                } catch (Exception e) {
-                    rollback();
-                    LOG.warn("Could not save success result, will retry later", e);
-                    return false;
-                }
-            }
-
+            // Remove from queue, saving the result for in case we need to re-populate the index
+            results.success(entry, codec.encode(result));
             return true;
         }
     }
@@ -452,39 +862,115 @@ public class SqliteRunner implements AutoCloseable {
         return entity;
     }
 
+    /**
+     * List the given type and add its items to the queue. Listing runs on its own thread, handing
+     * URIs to this one through a bounded buffer. A separate connection is used so that workers can
+     * keep fetching items and saving results while the listing is written. Items are inserted in
+     * batches and committed in chunks, making them available to workers as listing goes on. URIs
+     * already queued for the type are skipped. If listing fails, items of the type which have not
+     * been started are removed again.
+     */
     private void enqueue(Class<? extends PassEntity> type,
-                         Function<Class<? extends PassEntity>, Stream<URI>> lister) {
+                         BiConsumer<Class<? extends PassEntity>, Consumer<URI>> lister) {
 
-        synchronized (conn) {
-            try {
-                begin();
+        BlockingQueue<URI> buffer = new ArrayBlockingQueue<>(ENQUEUE_CHUNK_SIZE);
+        AtomicBoolean aborted = new AtomicBoolean();
+        AtomicReference<Exception> listingError = new AtomicReference<>();
 
-                lister.apply(type).forEach(url -> {
-                    execUpdate("INSERT INTO item_queue (type, url) VALUES (?, ?)", s -> {
-                        s.setString(1, type.getSimpleName());
-                        s.setString(2, url.toString());
-                    });
+        Thread listingThread = new Thread(() -> {
+            try {
+                lister.accept(type, uri -> {
+                    if (!handOff(buffer, uri, aborted)) {
+                        throw new RuntimeException("Enqueueing was aborted");
+                    }
                 });
+            } catch (Exception e) {
+                listingError.set(e);
+            } finally {
+                handOff(buffer, END_OF_LISTING, aborted);
+            }
+        }, "list-" + type.getSimpleName());
 
-                execUpdate(String.format("UPDATE types_queue SET progress = %d WHERE type = '%s'", PROGRESS_DONE,
-                                         type.getName()),
-                           null);
+        String typeName = type.getSimpleName();
+        UriHashSet seen = new UriHashSet();
+        store.forEachQueued(typeName, seen::add);
 
-                commit();
-            } catch (Exception e) {
-                rollback();
-                autocommit();
-                execUpdate(String.format("UPDATE types_queue SET progress = %d WHERE type = '%s'", PROGRESS_FAILED,
-                                         type.getName()), null);
-                LOG.warn("error loading item queue", e);
+        try {
+            List<String> chunk = new ArrayList<>(ENQUEUE_CHUNK_SIZE);
+
+            listingThread.start();
+
+            for (URI url = buffer.take(); url != END_OF_LISTING; url = buffer.take()) {
+                if (!seen.add(url.toString())) {
+                    continue;
+                }
+
+                chunk.add(url.toString());
+
+                if (chunk.size() == ENQUEUE_CHUNK_SIZE) {
+                    store.enqueue(typeName, chunk);
+                    signalEnqueued();
+                    chunk.clear();
+                }
+            }
+
+            if (listingError.get() != null) {
+                throw listingError.get();
+            }
+
+            store.enqueue(typeName, chunk);
+            setTypeProgress(type, PROGRESS_DONE);
+        } catch (Exception e) {
+            aborted.set(true);
+            store.abandon(typeName);
+            setTypeProgress(type, PROGRESS_FAILED);
+
+            LOG.warn("error loading item queue", e);
+        }
+    }
+
+    // Wait for room in the buffer, unless the side taking URIs out has given up.
+    // Returns false if the URI was not handed off.
+    private static boolean handOff(BlockingQueue<URI> buffer, URI uri, AtomicBoolean aborted) {
+        try {
+            while (!aborted.get()) {
+                if (buffer.offer(uri, 1, TimeUnit.SECONDS)) {
+                    return true;
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
+        return false;
     }
 
-    private Connection open(String filepath) {
+    private void setTypeProgress(Class<? extends PassEntity> type, int progress) {
+        synchronized (conn) {
+            autocommit();
+            execUpdate(STMNT_TYPE_PROGRESS, s -> {
+                s.setInt(1, progress);
+                s.setString(2, type.getName());
+            });
+        }
+    }
+
+    private void resetRunningTypes() {
+        synchronized (conn) {
+            autocommit();
+            execUpdate(String.format("UPDATE types_queue SET progress = %d WHERE progress = %d", PROGRESS_ENQUEUED,
+                                     PROGRESS_RUNNING), null);
+        }
+    }
+
+    // Connections use WAL mode so that readers and the writer of the db do not block each other.
+    static Connection open(String filepath) {
+        Properties props = new Properties();
+        props.setProperty("journal_mode", "WAL");
+        props.setProperty("busy_timeout", String.valueOf(BUSY_TIMEOUT_MILLIS));
+
         try {
-            return DriverManager.getConnection("jdbc:sqlite:" + filepath);
+            return DriverManager.getConnection("jdbc:sqlite:" + filepath, props);
         } catch (SQLException e) {
             throw new RuntimeException("Failed opening db at " + filepath, e);
         }
@@ -501,9 +987,80 @@ public class SqliteRunner implements AutoCloseable {
         execUpdate(STMNT_CREATE_TABLE_ITEM_QUEUE, null);
         execUpdate(STMNT_CREATE_TABLE_RESULTS, null);
         commit();
+        upgrade();
+    }
+
+    // Bring the schema of a db written by an older version up to date.
+    private void upgrade() {
+        autocommit();
+
+        if (!hasColumn("item_queue", "lease_expires")) {
+            execUpdate(STMNT_ADD_COLUMN_LEASE, null);
+        }
+
+        for (String column : new String[] {"encoding TEXT", "digest TEXT", "content BLOB"}) {
+            if (!hasColumn("results", column.split(" ")[0])) {
+                execUpdate("ALTER TABLE results ADD COLUMN " + column, null);
+            }
+        }
+
+        execUpdate(STMNT_CREATE_INDEX_PENDING, null);
+        execUpdate(STMNT_CREATE_INDEX_LEASED, null);
+        execUpdate(STMNT_CREATE_INDEX_RESULTS_DONE, null);
+        execUpdate(STMNT_CREATE_TABLE_META, null);
+    }
+
+    private boolean hasColumn(String table, String column) {
+        AtomicBoolean found = new AtomicBoolean();
+
+        execQuery("PRAGMA table_info(" + table + ")", null, results -> {
+            while (results.next()) {
+                if (results.getString("name").equals(column)) {
+                    found.set(true);
+                }
+            }
+        });
+
+        return found.get();
+    }
+
+    private byte[] getMeta(String key) {
+        AtomicReference<byte[]> value = new AtomicReference<>();
+
+        synchronized (conn) {
+            autocommit();
+            execQuery(STMNT_META_GET, s -> s.setString(1, key), results -> {
+                if (results.next()) {
+                    value.set(results.getBytes(1));
+                }
+            });
+        }
+
+        return value.get();
+    }
+
+    private void putMeta(String key, byte[] value) {
+        synchronized (conn) {
+            autocommit();
+            execUpdate(STMNT_META_PUT, s -> {
+                s.setString(1, key);
+                s.setBytes(2, value);
+            });
+        }
+    }
+
+    // Describe an exception and its causes without the stack trace.
+    static String getSummary(Exception e) {
+        StringBuilder summary = new StringBuilder(e.toString());
+
+        for (Throwable cause = e.getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+            summary.append("\nCaused by: ").append(cause);
+        }
+
+        return summary.toString();
     }
 
-    private static String getStackTrace(Exception e) {
+    static String getStackTrace(Exception e) {
         StringWriter sw = new StringWriter();
         e.printStackTrace(new PrintWriter(sw));
         return sw.toString();
@@ -511,6 +1068,8 @@ public class SqliteRunner implements AutoCloseable {
 
     @Override
     public void close() {
+        results.close();
+        store.close();
         quietly(() -> conn.close());
     }
 }
@@ -0,0 +1,48 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Limits the rate of requests made by the indexer. Requests to the host and port of Elasticsearch,
+ * including scrolls and other requests outside the index, take a permit from one limiter. Everything
+ * else is a Fedora request and takes a permit from the other.
+ */
+public class ThrottlingInterceptor implements Interceptor {
+
+    private final String esHost;
+    private final int esPort;
+    private final RateLimiter es;
+    private final RateLimiter fedora;
+
+    public ThrottlingInterceptor(String esIndexUrl, RateLimiter es, RateLimiter fedora) {
+        HttpUrl url = HttpUrl.get(esIndexUrl);
+        this.esHost = url.host();
+        this.esPort = url.port();
+        this.es = es;
+        this.fedora = fedora;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+
+        try {
+            if (request.url().host().equals(esHost) && request.url().port() == esPort) {
+                es.acquire();
+            } else {
+                fedora.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to send " + request.url());
+        }
+
+        return chain.proceed(request);
+    }
+}
@@ -0,0 +1,85 @@
+package org.dataconservancy.pass.indexer.reindex;
+
+/**
+ * Set of URIs which only keeps a 64 bit hash of each, in an open addressing table of longs.
+ * This takes a fraction of the memory of a set of strings, at the cost of a tiny chance of two
+ * URIs being taken for the same one. For ten million URIs that chance is about one in a hundred
+ * thousand. Not thread safe.
+ */
+class UriHashSet {
+
+    // Marks an empty slot. A URI hashing to it is stored as EMPTY + 1 instead.
+    private static final long EMPTY = 0;
+
+    private long[] table;
+    private int size;
+
+    UriHashSet() {
+        table = new long[1024];
+    }
+
+    /**
+     * @return true if the URI was not in the set already
+     */
+    boolean add(String uri) {
+        if (size * 2 >= table.length) {
+            resize();
+        }
+
+        if (insert(table, hash(uri))) {
+            size++;
+            return true;
+        }
+
+        return false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private boolean insert(long[] into, long h) {
+        int mask = into.length - 1;
+
+        for (int i = (int) h & mask; ; i = (i + 1) & mask) {
+            if (into[i] == EMPTY) {
+                into[i] = h;
+                return true;
+            }
+
+            if (into[i] == h) {
+                return false;
+            }
+        }
+    }
+
+    private void resize() {
+        long[] bigger = new long[table.length * 2];
+
+        for (long h : table) {
+            if (h != EMPTY) {
+                insert(bigger, h);
+            }
+        }
+
+        table = bigger;
+    }
+
+    // FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h == EMPTY ? EMPTY + 1 : h;
+    }
+}
@@ -0,0 +1,133 @@
+package org.dataconservancy.pass.indexer.rendex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.dataconservancy.pass.indexer.ElasticSearchIndexer;
+import org.dataconservancy.pass.indexer.reindex.ConsistencyChecker;
+import org.dataconservancy.pass.model.Submission;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsistencyCheckerTest {
+
+    private static final String MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+    private static final long MODIFIED_MILLIS = 784903526000L;
+
+    private MockWebServer server;
+    private final Map<String, Long> indexed = new HashMap<>();
+    private final List<String> bulks = new CopyOnWriteArrayList<>();
+    private final List<String> heads = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath();
+
+                if (path.startsWith("/fcrepo/")) {
+                    if (request.getMethod().equals("HEAD")) {
+                        heads.add(path);
+                    }
+
+                    MockResponse response = new MockResponse().setHeader("Last-Modified", MODIFIED);
+
+                    if (request.getMethod().equals("GET")) {
+                        response.setHeader("Content-Type", "application/ld+json")
+                                .setBody(new JSONObject().put("@id", server.url(path).toString()).toString());
+                    }
+
+                    return response;
+                }
+
+                if (path.equals("/es/pass/")) {
+                    JSONObject props = new JSONObject().put("@id", new JSONObject());
+                    return new MockResponse().setBody(new JSONObject().put("mappings", new JSONObject().put(
+                        "_doc", new JSONObject().put("properties", props))).toString());
+                }
+
+                if (path.startsWith("/es/pass/_search")) {
+                    JSONArray hits = new JSONArray();
+                    indexed.forEach((id, modified) -> hits.put(new JSONObject().put("_id", id).put(
+                        "_source", new JSONObject().put("fedora_last_modified", modified))));
+                    return new MockResponse().setBody(new JSONObject().put("_scroll_id", "scroll").put(
+                        "hits", new JSONObject().put("hits", hits)).toString());
+                }
+
+                if (path.equals("/_search/scroll")) {
+                    return new MockResponse().setBody(new JSONObject().put("_scroll_id", "scroll").put(
+                        "hits", new JSONObject().put("hits", new JSONArray())).toString());
+                }
+
+                if (path.equals("/es/pass/_doc/_bulk")) {
+                    bulks.add(request.getBody().readUtf8());
+                    return new MockResponse().setBody("{\"errors\": false}");
+                }
+
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void checkAndRepairTest() throws Exception {
+        String current = server.url("/fcrepo/current").toString();
+        String stale = server.url("/fcrepo/stale").toString();
+        String missing = server.url("/fcrepo/missing").toString();
+        String orphan = ElasticSearchIndexer.get_document_id(server.url("/fcrepo/orphan").toString());
+
+        indexed.put(ElasticSearchIndexer.get_document_id(current), MODIFIED_MILLIS);
+        indexed.put(ElasticSearchIndexer.get_document_id(stale), MODIFIED_MILLIS - 1000);
+        indexed.put(orphan, MODIFIED_MILLIS);
+
+        OkHttpClient client = new OkHttpClient();
+        String index = server.url("/es/pass/").toString();
+        ElasticSearchIndexer es = new ElasticSearchIndexer(index, "unused", "admin", "admin", client);
+
+        ConsistencyChecker checker = new ConsistencyChecker(es, client, index, (type, sink) -> {
+            Arrays.asList(current, stale, missing).forEach(uri -> sink.accept(URI.create(uri)));
+        }, Collections.singletonList(Submission.class));
+        checker.setBuckets(4);
+
+        ConsistencyChecker.Report report = checker.check(true);
+
+        assertEquals(Collections.singletonList(missing), report.getMissing());
+        assertEquals(Collections.singletonList(stale), report.getStale());
+        assertEquals(Collections.singletonList(orphan), report.getOrphaned());
+        assertEquals(0, report.getErrors());
+
+        // Each resource is checked once, though its bucket is compared in the second pass
+        assertEquals(3, heads.size());
+
+        // Only the differing documents are written
+        String written = String.join("", bulks);
+        assertTrue(written.contains(ElasticSearchIndexer.get_document_id(missing)));
+        assertTrue(written.contains(ElasticSearchIndexer.get_document_id(stale)));
+        assertTrue(written.contains("{\"delete\":{\"_id\":\"" + orphan + "\"}}"));
+        assertEquals(-1, written.indexOf(ElasticSearchIndexer.get_document_id(current)));
+    }
+}
@@ -0,0 +1,84 @@
+package org.dataconservancy.pass.indexer.rendex;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoublePredicate;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.dataconservancy.pass.indexer.reindex.EsLoadMonitor;
+import org.dataconservancy.pass.indexer.reindex.RateLimiter;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EsLoadMonitorTest {
+
+    private MockWebServer server;
+    private volatile long queue;
+    private volatile long rejected;
+
+    @Before
+    public void setup() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (!request.getPath().equals("/_nodes/stats/thread_pool")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+
+                JSONObject write = new JSONObject().put("queue", queue).put("rejected", rejected);
+                JSONObject node = new JSONObject().put("thread_pool", new JSONObject().put("write", write));
+
+                return new MockResponse().setBody(new JSONObject().put("nodes", new JSONObject().put("n1", node))
+                                                                  .toString());
+            }
+        });
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void feedbackTest() throws Exception {
+        RateLimiter limiter = new RateLimiter(100);
+
+        try (EsLoadMonitor monitor = new EsLoadMonitor(server.url("/pass/").toString(), new OkHttpClient(), limiter,
+                                                       50)) {
+            monitor.start(20, TimeUnit.MILLISECONDS);
+
+            // A long write queue halves the rate each check, down to a tenth
+            queue = 100;
+            awaitRate(limiter, rate -> rate < 100);
+            assertTrue(limiter.getRate() >= 25);
+            awaitRate(limiter, rate -> rate == 10);
+
+            // Then it climbs back by a tenth of the maximum each check
+            queue = 0;
+            awaitRate(limiter, rate -> rate > 10);
+            assertTrue(limiter.getRate() < 50);
+            awaitRate(limiter, rate -> rate == 100);
+
+            // Writes rejected since the last check count as overload too
+            rejected = 1;
+            awaitRate(limiter, rate -> rate < 100);
+        }
+    }
+
+    private static void awaitRate(RateLimiter limiter, DoublePredicate expected) throws InterruptedException {
+        for (int i = 0; i < 500 && !expected.test(limiter.getRate()); i++) {
+            Thread.sleep(5);
+        }
+
+        assertTrue("Rate is " + limiter.getRate(), expected.test(limiter.getRate()));
+    }
+}
@@ -0,0 +1,153 @@
+package org.dataconservancy.pass.indexer.rendex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.dataconservancy.pass.indexer.reindex.MappedQueueStore;
+import org.dataconservancy.pass.indexer.reindex.QueueStore.Entry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedQueueStoreTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("queue");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void crashRecoveryTest() throws Exception {
+        MappedQueueStore store = new MappedQueueStore(dir);
+        store.enqueue("Submission", Arrays.asList("test:/1", "test:/2", "test:/3"));
+
+        List<Entry> claimed = store.claim(2, Long.MAX_VALUE);
+        assertEquals(Arrays.asList("test:/1", "test:/2"), uris(claimed));
+        store.finish(claimed.subList(0, 1), Collections.emptyList());
+
+        // A record cut short by a crash, without closing the store
+        try (FileChannel segment = FileChannel.open(dir.resolve("segment-00000.log"), StandardOpenOption.WRITE)) {
+            long end = 3 * 8 + 3 * (1 + "Submission".length() + "test:/1".length());
+            segment.write(ByteBuffer.allocate(4).putInt(0, 100), end);
+        }
+
+        // The running item is pending again and the partial record is gone
+        MappedQueueStore reopen = new MappedQueueStore(dir);
+        assertEquals(2, reopen.remainingCount());
+        List<String> queued = new ArrayList<>();
+        reopen.forEachQueued("Submission", queued::add);
+        assertEquals(Arrays.asList("test:/2", "test:/3"), queued);
+
+        reopen.enqueue("Submission", Collections.singletonList("test:/4"));
+        assertEquals(Arrays.asList("test:/2", "test:/3", "test:/4"), uris(reopen.claim(10, Long.MAX_VALUE)));
+        reopen.close();
+    }
+
+    @Test
+    public void cleanReopenTest() throws Exception {
+        try (MappedQueueStore store = new MappedQueueStore(dir)) {
+            store.enqueue("Submission", Arrays.asList("test:/1", "test:/2", "test:/3"));
+        }
+
+        // Anything past the end of the log would be zeroed by a truncation
+        Path segment = dir.resolve("segment-00000.log");
+        long last = Files.size(segment) - 1;
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1}), last);
+        }
+
+        try (MappedQueueStore reopen = new MappedQueueStore(dir);
+             FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer marker = ByteBuffer.allocate(1);
+            channel.read(marker, last);
+            assertEquals(1, marker.get(0));
+
+            reopen.enqueue("Submission", Collections.singletonList("test:/4"));
+            assertEquals(Arrays.asList("test:/1", "test:/2", "test:/3", "test:/4"),
+                         uris(reopen.claim(10, Long.MAX_VALUE)));
+        }
+    }
+
+    @Test
+    public void leaseExpiryTest() throws Exception {
+        try (MappedQueueStore store = new MappedQueueStore(dir)) {
+            store.enqueue("Submission", Arrays.asList("test:/1", "test:/2"));
+
+            assertEquals(2, store.claim(10, 1000).size());
+            assertTrue(store.claim(10, 1000).isEmpty());
+
+            assertEquals(2, store.releaseExpired(2000));
+            List<Entry> reclaimed = store.claim(10, 3000);
+            assertEquals(Arrays.asList("test:/1", "test:/2"), uris(reclaimed));
+
+            store.finish(reclaimed.subList(0, 1), reclaimed.subList(1, 2));
+            assertEquals(0, store.remainingCount());
+            assertEquals(1, store.failedCount());
+            assertEquals(1, store.counts().get("Submission")[1]);
+
+            store.retryFailed();
+            assertEquals(Collections.singletonList("test:/2"), uris(store.claim(10, 3000)));
+        }
+    }
+
+    @Test
+    public void compactionTest() throws Exception {
+        int count = 150_000;
+
+        try (MappedQueueStore store = new MappedQueueStore(dir)) {
+            for (int i = 0; i < count; i += 1000) {
+                int start = i;
+                store.enqueue("Submission", Stream.iterate(start, n -> n + 1).limit(1000)
+                                                  .map(n -> "test:/" + n).collect(Collectors.toList()));
+            }
+
+            List<Entry> claimed = store.claim(count, Long.MAX_VALUE);
+            assertEquals(count, claimed.size());
+
+            // Leave the last ten items pending, five of them failed
+            store.finish(claimed.subList(0, count - 10), claimed.subList(count - 5, count));
+        }
+
+        try (MappedQueueStore reopen = new MappedQueueStore(dir)) {
+            assertEquals(5, reopen.failedCount());
+            assertEquals(5, reopen.remainingCount());
+            assertFalse(Files.exists(dir.resolveSibling(dir.getFileName() + ".compact")));
+            assertFalse(Files.exists(dir.resolveSibling(dir.getFileName() + ".old")));
+
+            // Only the items left were copied, so their ids start over
+            List<Entry> pending = reopen.claim(10, Long.MAX_VALUE);
+            assertEquals(Arrays.asList("test:/149990", "test:/149991", "test:/149992", "test:/149993",
+                                       "test:/149994"), uris(pending));
+            assertTrue(pending.stream().allMatch(e -> e.id < 10));
+        }
+    }
+
+    private static List<String> uris(List<Entry> entries) {
+        return entries.stream().map(e -> e.uri).collect(Collectors.toList());
+    }
+}
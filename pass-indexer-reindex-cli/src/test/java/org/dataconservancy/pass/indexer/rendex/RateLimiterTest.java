@@ -0,0 +1,56 @@
+package org.dataconservancy.pass.indexer.rendex;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dataconservancy.pass.indexer.reindex.RateLimiter;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    @Test
+    public void unlimitedTest() throws Exception {
+        RateLimiter limiter = new RateLimiter(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            limiter.acquire();
+        }
+
+        assertTrue(elapsedMillis(start) < 1000);
+    }
+
+    @Test
+    public void limitedTest() throws Exception {
+        RateLimiter limiter = new RateLimiter(20);
+
+        // The first second worth of permits is available at once, the next ten take half a second.
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            limiter.acquire();
+        }
+
+        long elapsed = elapsedMillis(start);
+        assertTrue("Took " + elapsed, elapsed >= 450 && elapsed < 1500);
+    }
+
+    @Test
+    public void changeRateTest() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000);
+        limiter.setRate(10);
+
+        // Lowering the rate also lowers the burst
+        long start = System.nanoTime();
+        for (int i = 0; i < 15; i++) {
+            limiter.acquire();
+        }
+
+        long elapsed = elapsedMillis(start);
+        assertTrue("Took " + elapsed, elapsed >= 450 && elapsed < 1500);
+    }
+
+    private long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
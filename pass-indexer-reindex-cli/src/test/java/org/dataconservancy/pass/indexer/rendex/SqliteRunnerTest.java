@@ -1,21 +1,47 @@
 package org.dataconservancy.pass.indexer.rendex;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.dataconservancy.pass.indexer.reindex.LeaseServer;
 import org.dataconservancy.pass.indexer.reindex.Main;
+import org.dataconservancy.pass.indexer.reindex.MappedQueueStore;
+import org.dataconservancy.pass.indexer.reindex.QueueStore;
+import org.dataconservancy.pass.indexer.reindex.RemoteWorker;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Compression;
+import org.dataconservancy.pass.indexer.reindex.ResultCodec.Retention;
 import org.dataconservancy.pass.indexer.reindex.SqliteRunner;
 import org.dataconservancy.pass.model.Submission;
 import org.dataconservancy.pass.model.SubmissionEvent;
+import org.json.JSONObject;
 import org.junit.Test;
 
 public class SqliteRunnerTest {
@@ -39,6 +65,44 @@ public class SqliteRunnerTest {
         Files.delete(new File(runner.getFilePath()).toPath());
     }
 
+    @Test
+    public void parallelListingTest() throws Exception {
+
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        runner.setListers(3);
+        Collection<URI> processed = run(runner, 0, 0);
+
+        assertEquals(4, processed.size());
+        assertTrue(processed.containsAll(Arrays.asList(uri1, uri2, uri3, uri4)));
+        assertEquals(0, runner.errorCount());
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
+    @Test
+    public void duplicateListingTest() throws Exception {
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+
+        // Listing hands each URI to the sink as it goes, possibly more than once
+        List<URI> processed = Collections.synchronizedList(new ArrayList<URI>());
+        runner.process((type, sink) -> {
+            if (type.equals(Submission.class)) {
+                Arrays.asList(uri1, uri2, uri1, uri3, uri2).forEach(sink);
+            }
+        }, uri -> {
+                processed.add(uri);
+                return uri.toString();
+            });
+
+        assertEquals(3, processed.size());
+        assertTrue(processed.containsAll(Arrays.asList(uri1, uri2, uri3)));
+        assertEquals(0, runner.errorCount());
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
     @Test
     public void basicResumptionTest() throws Exception {
         SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
@@ -55,6 +119,37 @@ public class SqliteRunnerTest {
         Files.delete(new File(runner.getFilePath()).toPath());
     }
 
+    @Test
+    public void interruptedItemResumptionTest() throws Exception {
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+
+        // An error which escapes item processing leaves the item started, as if the run had crashed
+        List<URI> processed = Collections.synchronizedList(new ArrayList<URI>());
+        runner.process(e -> e.equals(Submission.class) ? Arrays.asList(uri1, uri2).stream() : Stream.empty(),
+            uri -> {
+                if (uri.equals(uri1)) {
+                    throw new Error("crash");
+                }
+                processed.add(uri);
+                return uri.toString();
+            });
+
+        // The started item is processed again before the run ends, it is left leased and counted as an error
+        assertEquals(Arrays.asList(uri2), processed);
+        assertEquals(1, runner.errorCount());
+        runner.close();
+
+        // Resuming picks the started item up again
+        SqliteRunner reopen = new SqliteRunner(runner.getFilePath());
+        Collection<URI> resumed = run(reopen, 0, 0);
+
+        assertEquals(Arrays.asList(uri1), resumed);
+        assertEquals(0, reopen.errorCount());
+
+        reopen.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
     @Test
     public void basiclistingErrorTest() throws Exception {
         SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
@@ -115,9 +210,402 @@ public class SqliteRunnerTest {
         Files.delete(new File(runner.getFilePath()).toPath());
     }
 
+    @Test
+    public void restoreTest() throws Exception {
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        run(runner, 0, 1);
+        assertEquals(1, runner.errorCount());
+
+        // Only the saved results of successful items are restored
+        Map<String, String> restored = new HashMap<>();
+        List<Integer> batchSizes = new ArrayList<>();
+        assertEquals(3, runner.restore(2, batch -> {
+            batchSizes.add(batch.size());
+            restored.putAll(batch);
+        }));
+
+        assertEquals(Arrays.asList(2, 1), batchSizes);
+        assertEquals(3, restored.size());
+        restored.forEach((uri, doc) -> assertEquals(uri, doc));
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
+    @Test
+    public void compressedRestoreTest() throws Exception {
+        byte[] dictionary = "http://example.org/".getBytes(StandardCharsets.UTF_8);
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        runner.setResultCodec(new ResultCodec(Retention.FULL, Compression.ZSTD, dictionary));
+        run(runner, 0, 0);
+        runner.close();
+
+        // The dictionary is kept in the db, so the results can be decoded without it
+        runner = new SqliteRunner(runner.getFilePath());
+        Map<String, String> restored = new HashMap<>();
+        assertEquals(4, runner.restore(10, restored::putAll));
+        restored.forEach((uri, doc) -> assertEquals(uri, doc));
+
+        try {
+            runner.setResultCodec(new ResultCodec(Retention.FULL, Compression.ZSTD, new byte[] {1, 2, 3}));
+            fail("A different dictionary must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
+    @Test
+    public void hashRetentionTest() throws Exception {
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        runner.setResultCodec(new ResultCodec(Retention.HASH, Compression.NONE, null));
+        run(runner, 0, 0);
+
+        // Only a digest is kept, so there is nothing to restore
+        assertEquals(0, runner.restore(10, batch -> fail("Nothing should be restored")));
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
+    @Test
+    public void metricsFileTest() throws Exception {
+        Path metricsFile = Files.createTempFile("metrics", ".json");
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        runner.setMetricsFile(metricsFile);
+        run(runner, 0, 1);
+
+        // The final report is written once every item has been processed
+        JSONObject metrics = new JSONObject(new String(Files.readAllBytes(metricsFile), StandardCharsets.UTF_8));
+        assertEquals(3, metrics.getInt("done"));
+        assertEquals(1, metrics.getInt("failed"));
+        assertEquals(0, metrics.getInt("pending"));
+        assertEquals(4, metrics.getInt("total"));
+        assertEquals(0, metrics.getInt("types_listing"));
+        assertEquals(0, metrics.getInt("eta_seconds"));
+        assertEquals(2, metrics.getJSONObject("types").getJSONObject("Submission").getInt("total"));
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+        Files.delete(metricsFile);
+    }
+
+    @Test
+    public void checkpointTest() throws Exception {
+        Instant before = Instant.now();
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        run(runner, 0, 0);
+        assertNull(runner.getCheckpoint());
+
+        runner.saveCheckpoint();
+        runner.close();
+
+        // The checkpoint is when the run started and survives reopening the db
+        runner = new SqliteRunner(runner.getFilePath());
+        Instant checkpoint = runner.getCheckpoint();
+        assertFalse(checkpoint.isBefore(before));
+        assertFalse(checkpoint.isAfter(Instant.now()));
+
+        runner.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+    }
+
+    @Test
+    public void distributedTest() throws Exception {
+        SqliteRunner coordinator = new SqliteRunner(Main.PASS_TYPES);
+        List<URI> processed = Collections.synchronizedList(new ArrayList<URI>());
+
+        try (LeaseServer server = new LeaseServer(0)) {
+            // Workers may start before anything is listed, and wait for the coordinator
+            List<Thread> workers = new ArrayList<>();
+
+            for (int i = 0; i < 2; i++) {
+                RemoteWorker worker = new RemoteWorker("http://localhost:" + server.getPort(), new OkHttpClient());
+
+                workers.add(new Thread(() -> {
+                    try {
+                        worker.work(uri -> {
+                            processed.add(uri);
+                            return uri.toString();
+                        });
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+
+            workers.forEach(Thread::start);
+
+            coordinator.coordinate((type, sink) -> {
+                if (type.equals(Submission.class)) {
+                    Arrays.asList(uri1, uri2, uri3).forEach(sink);
+                } else if (type.equals(SubmissionEvent.class)) {
+                    sink.accept(uri4);
+                }
+            }, server);
+
+            // Workers leave once told the run is finished
+            for (Thread worker : workers) {
+                worker.join(30000);
+                assertFalse(worker.isAlive());
+            }
+
+            // A claim must ask for at least one item
+            String url = "http://localhost:" + server.getPort() + "/claim?worker=w&count=-1";
+            Request claim = new Request.Builder().url(url).post(RequestBody.create(null, new byte[0])).build();
+
+            try (Response response = new OkHttpClient().newCall(claim).execute()) {
+                assertEquals(400, response.code());
+            }
+        }
+
+        // Each item was processed by exactly one worker, and its result saved by the coordinator
+        assertEquals(4, processed.size());
+        assertTrue(processed.containsAll(Arrays.asList(uri1, uri2, uri3, uri4)));
+        assertEquals(0, coordinator.errorCount());
+
+        Map<String, String> restored = new HashMap<>();
+        coordinator.restore(10, restored::putAll);
+        assertEquals(4, restored.size());
+        assertEquals(uri4.toString(), restored.get(uri4.toString()));
+
+        coordinator.close();
+        Files.delete(new File(coordinator.getFilePath()).toPath());
+    }
+
+    @Test
+    public void distributedExpiredLeaseTest() throws Exception {
+        SqliteRunner coordinator = new SqliteRunner(Main.PASS_TYPES);
+        coordinator.setLease(Duration.ofSeconds(1));
+        List<URI> processed = Collections.synchronizedList(new ArrayList<URI>());
+
+        try (LeaseServer server = new LeaseServer(0)) {
+            String url = "http://localhost:" + server.getPort();
+
+            // A worker which stops after leasing items. Its items go to the other worker once the leases expire.
+            Thread stopped = new Thread(() -> {
+                OkHttpClient client = new OkHttpClient();
+
+                try {
+                    for (int leased = 0; leased < 2; ) {
+                        Request claim = new Request.Builder().url(url + "/claim?worker=stopped&count=2")
+                                                             .post(RequestBody.create(null, new byte[0])).build();
+
+                        try (Response response = client.newCall(claim).execute()) {
+                            leased += new JSONObject(response.body().string()).getJSONArray("items").length();
+                        }
+
+                        Thread.sleep(100);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            stopped.start();
+
+            Thread worker = new Thread(() -> {
+                try {
+                    stopped.join();
+                    new RemoteWorker(url, new OkHttpClient()).work(uri -> {
+                        processed.add(uri);
+                        return uri.toString();
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            worker.start();
+
+            coordinator.coordinate((type, sink) -> {
+                if (type.equals(Submission.class)) {
+                    Arrays.asList(uri1, uri2, uri3, uri4).forEach(sink);
+                }
+            }, server);
+
+            worker.join(30000);
+            assertFalse(worker.isAlive());
+        }
+
+        assertEquals(4, processed.size());
+        assertTrue(processed.containsAll(Arrays.asList(uri1, uri2, uri3, uri4)));
+        assertEquals(0, coordinator.errorCount());
+
+        coordinator.close();
+        Files.delete(new File(coordinator.getFilePath()).toPath());
+    }
+
+    @Test
+    public void distributedNoWorkerTest() throws Exception {
+        SqliteRunner coordinator = new SqliteRunner(Main.PASS_TYPES);
+        coordinator.setWorkerTimeout(Duration.ofSeconds(1));
+
+        // Rather than waiting forever for workers which are gone, the coordinator gives up
+        try (LeaseServer server = new LeaseServer(0)) {
+            coordinator.coordinate((type, sink) -> {
+                if (type.equals(Submission.class)) {
+                    sink.accept(uri1);
+                }
+            }, server);
+            fail("Expected the coordinator to give up");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1 items remain"));
+        }
+
+        coordinator.close();
+        Files.delete(new File(coordinator.getFilePath()).toPath());
+    }
+
+    @Test
+    public void mappedQueueTest() throws Exception {
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        Path queue = Paths.get(runner.getFilePath() + ".queue");
+        runner.setQueueStore(new MappedQueueStore(queue));
+
+        assertEquals(1, run(runner, 1, 1).size());
+        assertEquals(2, runner.errorCount());
+        runner.close();
+
+        // Failures are kept in the queue when the db is reopened
+        SqliteRunner reopen = new SqliteRunner(runner.getFilePath());
+        reopen.setQueueStore(new MappedQueueStore(queue));
+        assertEquals(2, reopen.errorCount());
+
+        // The failed item is retried along with the type which failed to list
+        reopen.clearErrors();
+        assertEquals(3, run(reopen, 0, 0).size());
+        assertEquals(0, reopen.errorCount());
+
+        reopen.close();
+        Files.delete(new File(runner.getFilePath()).toPath());
+        try (Stream<Path> files = Files.walk(queue)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Test
+    public void unsavedOutcomeTest() throws Exception {
+        SqliteRunner runner = new SqliteRunner(Main.PASS_TYPES);
+        Path queue = Paths.get(runner.getFilePath() + ".queue");
+
+        // Items cannot be moved out of the queue the first time, so they stay leased
+        FlakyQueueStore store = new FlakyQueueStore(new MappedQueueStore(queue), 1);
+        runner.setQueueStore(store);
+
+        // Processed again within the same run
+        assertEquals(8, run(runner, 0, 0).size());
+        assertEquals(0, runner.errorCount());
+
+        // Results of items processed again are only saved once
+        assertEquals(4, runner.restore(100, batch -> { }));
+        runner.saveCheckpoint();
+        runner.close();
+
+        // Items which can never be moved out are errors, and no checkpoint is saved
+        SqliteRunner failing = new SqliteRunner(Main.PASS_TYPES);
+        Path failing_queue = Paths.get(failing.getFilePath() + ".queue");
+        failing.setQueueStore(new FlakyQueueStore(new MappedQueueStore(failing_queue), Integer.MAX_VALUE));
+
+        run(failing, 0, 0);
+        assertEquals(4, failing.errorCount());
+
+        try {
+            failing.saveCheckpoint();
+            fail("Checkpoint saved with items left in the queue");
+        } catch (IllegalStateException e) {
+            assertNull(failing.getCheckpoint());
+        }
+
+        failing.close();
+
+        for (SqliteRunner r : Arrays.asList(runner, failing)) {
+            Files.delete(new File(r.getFilePath()).toPath());
+
+            try (Stream<Path> files = Files.walk(Paths.get(r.getFilePath() + ".queue"))) {
+                files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+            }
+        }
+    }
+
+    // Fails to finish items a number of times
+    private static class FlakyQueueStore implements QueueStore {
+        private final QueueStore store;
+        private int failures;
+
+        FlakyQueueStore(QueueStore store, int failures) {
+            this.store = store;
+            this.failures = failures;
+        }
+
+        @Override
+        public void enqueue(String type, List<String> uris) {
+            store.enqueue(type, uris);
+        }
+
+        @Override
+        public void forEachQueued(String type, Consumer<String> consumer) {
+            store.forEachQueued(type, consumer);
+        }
+
+        @Override
+        public void abandon(String type) {
+            store.abandon(type);
+        }
+
+        @Override
+        public List<Entry> claim(int count, long leaseExpires) {
+            return store.claim(count, leaseExpires);
+        }
+
+        @Override
+        public int releaseExpired(long expiredBefore) {
+            return store.releaseExpired(expiredBefore);
+        }
+
+        @Override
+        public synchronized void finish(List<Entry> done, List<Entry> failed) {
+            if (failures-- > 0) {
+                throw new RuntimeException("expected failure");
+            }
+
+            store.finish(done, failed);
+        }
+
+        @Override
+        public long remainingCount() {
+            return store.remainingCount();
+        }
+
+        @Override
+        public long leasedCount() {
+            return store.leasedCount();
+        }
+
+        @Override
+        public long failedCount() {
+            return store.failedCount();
+        }
+
+        @Override
+        public void retryFailed() {
+            store.retryFailed();
+        }
+
+        @Override
+        public Map<String, long[]> counts() {
+            return store.counts();
+        }
+
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+
     private Collection<URI> run(SqliteRunner runner, int listingFailureCount, int itemFailureCount) {
 
-        List<URI> processed = new ArrayList<URI>();
+        List<URI> processed = Collections.synchronizedList(new ArrayList<URI>());
 
         Counter listingFailures = new Counter(listingFailureCount);
         Counter itemFailures = new Counter(itemFailureCount);
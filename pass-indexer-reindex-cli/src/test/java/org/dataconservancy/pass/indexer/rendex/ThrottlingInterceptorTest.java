@@ -0,0 +1,89 @@
+package org.dataconservancy.pass.indexer.rendex;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.dataconservancy.pass.indexer.reindex.RateLimiter;
+import org.dataconservancy.pass.indexer.reindex.ThrottlingInterceptor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ThrottlingInterceptorTest {
+
+    private MockWebServer es;
+    private MockWebServer fedora;
+
+    // Counts the permits taken
+    private static class CountingLimiter extends RateLimiter {
+        final AtomicInteger acquired = new AtomicInteger();
+
+        CountingLimiter() {
+            super(0);
+        }
+
+        @Override
+        public void acquire() throws InterruptedException {
+            acquired.incrementAndGet();
+            super.acquire();
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        Dispatcher ok = new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("{}");
+            }
+        };
+
+        es = new MockWebServer();
+        es.setDispatcher(ok);
+        fedora = new MockWebServer();
+        fedora.setDispatcher(ok);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        es.shutdown();
+        fedora.shutdown();
+    }
+
+    @Test
+    public void classificationTest() throws Exception {
+        CountingLimiter esLimiter = new CountingLimiter();
+        CountingLimiter fedoraLimiter = new CountingLimiter();
+        OkHttpClient client = new OkHttpClient.Builder()
+            .addInterceptor(new ThrottlingInterceptor(es.url("/pass/").toString(), esLimiter, fedoraLimiter)).build();
+
+        get(client, es.url("/pass/_doc/1"));
+        get(client, es.url("/pass/_search?scroll=1m"));
+
+        // Scrolls and cluster requests are outside the index, but still go to Elasticsearch
+        get(client, es.url("/_search/scroll"));
+        get(client, es.url("/_nodes/stats/thread_pool"));
+
+        // Same host, other port
+        get(client, fedora.url("/fcrepo/rest/submissions/1"));
+
+        assertEquals(4, esLimiter.acquired.get());
+        assertEquals(1, fedoraLimiter.acquired.get());
+    }
+
+    private static void get(OkHttpClient client, HttpUrl url) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            assertEquals(200, response.code());
+        }
+    }
+}